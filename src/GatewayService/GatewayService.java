@@ -0,0 +1,478 @@
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Single entry point in front of UserService and ProductService.
+ *
+ *   /user/...        proxied to USER_SERVICE_URL    (default http://localhost:8081)
+ *   /product/...     proxied to PRODUCT_SERVICE_URL (default http://localhost:8082)
+ *   GET /composite/user/{id}?products=1,2,3
+ *                    user and products fetched in parallel, returned as one document
+ *   GET /gateway/metrics
+ *                    per-route latency metrics of the gateway itself
+ *
+ * Upstream calls share one HttpClient, so connections are pooled and kept alive.
+ * Identical GETs that are already in flight are answered by the same upstream call.
+ * Event streams (GET /product/changes, or any GET accepting text/event-stream) are
+ * never coalesced: each is relayed as it arrives by its own thread, see StreamRelay.
+ */
+public class GatewayService {
+
+    private static final int PORT = Integer.parseInt(env("GATEWAY_PORT", "8080"));
+    private static final String USER_URL = env("USER_SERVICE_URL", "http://localhost:8081");
+    private static final String PRODUCT_URL = env("PRODUCT_SERVICE_URL", "http://localhost:8082");
+    private static final Duration UPSTREAM_TIMEOUT = Duration.ofMillis(Long.parseLong(env("UPSTREAM_TIMEOUT_MS", "5000")));
+    private static final int MAX_STREAMS = Integer.parseInt(env("GATEWAY_MAX_STREAMS", "256"));
+    private static final long STREAM_STALL_MS = Long.parseLong(env("GATEWAY_STREAM_STALL_MS", "5000"));
+
+    // Forwarded as-is; everything else (Host, Connection, ...) is owned by the client
+    private static final String[] FORWARDED_HEADERS = { "Content-Type", "Accept", "Authorization", "X-API-Key" };
+
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(2))
+            .executor(Executors.newFixedThreadPool(8))
+            .build();
+
+    // upstream GET url + Accept + X-API-Key -> the call everyone asking for it waits on
+    private static final ConcurrentHashMap<String, CompletableFuture<HttpResponse<byte[]>>> IN_FLIGHT =
+            new ConcurrentHashMap<>();
+
+    private static final Set<StreamRelay> STREAMS = ConcurrentHashMap.newKeySet();
+
+    private static final Map<String, RouteMetrics> METRICS = new LinkedHashMap<>();
+    static {
+        METRICS.put("user", new RouteMetrics());
+        METRICS.put("product", new RouteMetrics());
+        METRICS.put("composite", new RouteMetrics());
+    }
+
+    // ---------- Main ----------
+    public static void main(String[] args) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        server.setExecutor(Executors.newFixedThreadPool(20));
+        server.createContext("/user", new ProxyHandler(USER_URL, METRICS.get("user")));
+        server.createContext("/product", new ProxyHandler(PRODUCT_URL, METRICS.get("product")));
+        server.createContext("/composite/user", new CompositeUserHandler());
+        server.createContext("/gateway/metrics", new MetricsHandler());
+        server.start();
+
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "gateway-stream-watchdog");
+            t.setDaemon(true);
+            return t;
+        });
+        watchdog.scheduleWithFixedDelay(StreamRelay::cutStalled, 1, 1, TimeUnit.SECONDS);
+
+        System.out.println("GatewayService started on port " + PORT);
+        System.out.println("Upstreams: user=" + USER_URL + " product=" + PRODUCT_URL);
+    }
+
+    // ---------- Metrics ----------
+    static class RouteMetrics {
+        // bucket i counts requests that took < 2^i microseconds
+        private static final int BUCKETS = 32;
+
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder coalesced = new LongAdder();
+        final LongAdder totalMicros = new LongAdder();
+        final AtomicLong maxMicros = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void record(long startNanos, int status) {
+            long micros = (System.nanoTime() - startNanos) / 1000;
+            requests.increment();
+            if (status >= 500) errors.increment();
+            totalMicros.add(micros);
+            maxMicros.accumulateAndGet(micros, Math::max);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            histogram.incrementAndGet(bucket);
+        }
+
+        // Upper bound (in ms) of the bucket holding the given percentile
+        double percentileMillis(double pct) {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = histogram.get(i);
+                total += counts[i];
+            }
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * pct);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) return (1L << i) / 1000.0;
+            }
+            return maxMicros.get() / 1000.0;
+        }
+
+        String toJson() {
+            long n = requests.sum();
+            return "{\"requests\":" + n +
+                    ",\"errors\":" + errors.sum() +
+                    ",\"coalesced\":" + coalesced.sum() +
+                    ",\"avg_ms\":" + ((n == 0) ? 0 : totalMicros.sum() / 1000.0 / n) +
+                    ",\"p50_ms\":" + percentileMillis(0.50) +
+                    ",\"p99_ms\":" + percentileMillis(0.99) +
+                    ",\"max_ms\":" + maxMicros.get() / 1000.0 + "}";
+        }
+    }
+
+    static class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            StringBuilder sb = new StringBuilder("{");
+            for (Map.Entry<String, RouteMetrics> e : METRICS.entrySet()) {
+                if (sb.length() > 1) sb.append(',');
+                sb.append('"').append(e.getKey()).append("\":").append(e.getValue().toJson());
+            }
+            sb.append(",\"in_flight_gets\":").append(IN_FLIGHT.size());
+            sb.append(",\"open_streams\":").append(STREAMS.size()).append('}');
+            send(exchange, 200, "application/json; charset=utf-8", sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // ---------- /user and /product ----------
+    static class ProxyHandler implements HttpHandler {
+        private final String upstream;
+        private final RouteMetrics metrics;
+
+        ProxyHandler(String upstream, RouteMetrics metrics) {
+            this.upstream = upstream;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            int status = 500;
+            try {
+                String method = exchange.getRequestMethod().toUpperCase();
+                URI target = URI.create(upstream + exchange.getRequestURI().getRawPath() +
+                        ((exchange.getRequestURI().getRawQuery() == null) ? "" : "?" + exchange.getRequestURI().getRawQuery()));
+
+                if ("GET".equals(method) && isStream(exchange)) {
+                    status = relayStream(target, exchange);
+                    return;
+                }
+
+                HttpResponse<byte[]> resp;
+                if ("GET".equals(method)) {
+                    resp = coalescedGet(target, exchange.getRequestHeaders().getFirst("Accept"), exchange, metrics).join();
+                } else {
+                    byte[] body;
+                    try (InputStream in = exchange.getRequestBody()) {
+                        body = in.readAllBytes();
+                    }
+                    HttpRequest.Builder b = HttpRequest.newBuilder(target)
+                            .timeout(UPSTREAM_TIMEOUT)
+                            .method(method, HttpRequest.BodyPublishers.ofByteArray(body));
+                    copyHeaders(exchange, b, FORWARDED_HEADERS);
+                    resp = CLIENT.send(b.build(), HttpResponse.BodyHandlers.ofByteArray());
+                }
+
+                status = resp.statusCode();
+                sendUpstream(exchange, resp);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = 503;
+                sendError(exchange, status, "Gateway interrupted");
+            } catch (Exception e) {
+                status = upstreamErrorStatus(e);
+                sendError(exchange, status, (status == 504) ? "Upstream timeout" : "Upstream unavailable");
+            } finally {
+                metrics.record(start, status);
+            }
+        }
+    }
+
+    // ---------- GET /composite/user/{id}?products=1,2,3 ----------
+    static class CompositeUserHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            RouteMetrics metrics = METRICS.get("composite");
+            long start = System.nanoTime();
+            int status = 500;
+            try {
+                if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+                    status = 405;
+                    sendError(exchange, status, "Method not allowed");
+                    return;
+                }
+
+                String[] segments = exchange.getRequestURI().getPath().split("/");
+                int userId;
+                List<Integer> productIds = new ArrayList<>();
+                try {
+                    // ["", "composite", "user", "<id>"]
+                    if (segments.length != 4) throw new NumberFormatException();
+                    userId = Integer.parseInt(segments[3]);
+                    String products = queryParam(exchange.getRequestURI().getRawQuery(), "products");
+                    if (products != null && !products.isEmpty()) {
+                        for (String p : products.split(",")) productIds.add(Integer.parseInt(p.trim()));
+                    }
+                } catch (NumberFormatException e) {
+                    status = 400;
+                    sendError(exchange, status, "Invalid user or product id");
+                    return;
+                }
+
+                // every upstream call is started before we wait on any of them
+                CompletableFuture<HttpResponse<byte[]>> user =
+                        coalescedGet(URI.create(USER_URL + "/user/" + userId), "application/json", exchange, METRICS.get("user"));
+                List<CompletableFuture<HttpResponse<byte[]>>> products = new ArrayList<>();
+                for (int id : productIds) {
+                    products.add(coalescedGet(URI.create(PRODUCT_URL + "/product/" + id), "application/json",
+                            exchange, METRICS.get("product")));
+                }
+
+                HttpResponse<byte[]> userResp = user.get();
+                if (userResp.statusCode() != 200) {
+                    status = userResp.statusCode();
+                    sendUpstream(exchange, userResp);
+                    return;
+                }
+
+                StringBuilder sb = new StringBuilder("{\"user\":");
+                sb.append(new String(userResp.body(), StandardCharsets.UTF_8)).append(",\"products\":[");
+                for (int i = 0; i < products.size(); i++) {
+                    if (i > 0) sb.append(',');
+                    HttpResponse<byte[]> p = products.get(i).get();
+                    // missing products are reported in place rather than failing the whole document
+                    sb.append((p.statusCode() == 200)
+                            ? new String(p.body(), StandardCharsets.UTF_8)
+                            : "{\"id\":" + productIds.get(i) + ",\"status\":" + p.statusCode() + "}");
+                }
+                sb.append("]}");
+
+                status = 200;
+                send(exchange, status, "application/json; charset=utf-8", sb.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                status = 503;
+                sendError(exchange, status, "Gateway interrupted");
+            } catch (Exception e) {
+                status = upstreamErrorStatus(e);
+                sendError(exchange, status, (status == 504) ? "Upstream timeout" : "Upstream unavailable");
+            } finally {
+                metrics.record(start, status);
+            }
+        }
+    }
+
+    // ---------- Event streams ----------
+
+    /**
+     * One relayed event stream. Its copier thread writes each upstream read to the
+     * client as soon as it arrives, so the stream holds neither a server worker nor an
+     * IN_FLIGHT entry. A client that stops reading would block the copier forever, so
+     * one whose write has been stuck for STREAM_STALL_MS is cut off by interrupting the
+     * copier: that closes the socket channel under the blocked write without flushing.
+     */
+    static class StreamRelay {
+        final HttpExchange exchange;
+        final InputStream upstream;
+        final Thread copier;
+        volatile long writeStartedNanos; // 0 when not inside a write
+
+        StreamRelay(HttpExchange exchange, InputStream upstream) {
+            this.exchange = exchange;
+            this.upstream = upstream;
+            this.copier = new Thread(this::copy, "gateway-stream");
+            this.copier.setDaemon(true);
+        }
+
+        private void copy() {
+            byte[] buf = new byte[8192];
+            try (InputStream in = upstream) {
+                OutputStream out = exchange.getResponseBody();
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    writeStartedNanos = System.nanoTime();
+                    out.write(buf, 0, n);
+                    out.flush(); // an event must not sit in the chunk buffer
+                    writeStartedNanos = 0;
+                }
+            } catch (IOException e) {
+                // either side went away, or cutStalled() interrupted us
+            } finally {
+                STREAMS.remove(this);
+                exchange.close();
+            }
+        }
+
+        static void cutStalled() {
+            long now = System.nanoTime();
+            for (StreamRelay r : STREAMS) {
+                long started = r.writeStartedNanos;
+                if (started != 0 && now - started > TimeUnit.MILLISECONDS.toNanos(STREAM_STALL_MS)) {
+                    r.copier.interrupt();
+                }
+            }
+        }
+    }
+
+    // Responses that never end; buffering or sharing them would hold a worker forever
+    private static boolean isStream(HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+        return exchange.getRequestURI().getPath().equals("/product/changes")
+                || (accept != null && accept.contains("text/event-stream"));
+    }
+
+    /** Starts relaying and returns the status sent; the exchange is closed by the relay. */
+    private static int relayStream(URI target, HttpExchange exchange) throws IOException, InterruptedException {
+        if (STREAMS.size() >= MAX_STREAMS) {
+            exchange.getResponseHeaders().set("Retry-After", "5");
+            sendError(exchange, 503, "Too many open streams");
+            return 503;
+        }
+
+        HttpRequest.Builder b = HttpRequest.newBuilder(target).timeout(UPSTREAM_TIMEOUT).GET();
+        copyHeaders(exchange, b, "Accept", "Authorization", "X-API-Key", "Last-Event-ID");
+        HttpResponse<InputStream> resp = CLIENT.send(b.build(), HttpResponse.BodyHandlers.ofInputStream());
+
+        // errors (400, 429, 503, ...) are short and complete: answer them as usual
+        if (resp.statusCode() != 200) {
+            byte[] body;
+            try (InputStream in = resp.body()) {
+                body = in.readAllBytes();
+            }
+            resp.headers().firstValue("Retry-After").ifPresent(v -> exchange.getResponseHeaders().set("Retry-After", v));
+            send(exchange, resp.statusCode(), resp.headers().firstValue("Content-Type").orElse(null), body);
+            return resp.statusCode();
+        }
+
+        resp.headers().firstValue("Content-Type").ifPresent(v -> exchange.getResponseHeaders().set("Content-Type", v));
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        StreamRelay relay = new StreamRelay(exchange, resp.body());
+        STREAMS.add(relay);
+        relay.copier.start();
+        return 200;
+    }
+
+    // ---------- Upstream helpers ----------
+
+    /**
+     * Joins an identical GET that is already on the wire, or starts one.
+     * The entry is dropped as soon as the call completes, so nothing is cached:
+     * only callers that overlap in time share a response.
+     *
+     * Upstream rate limits are per client, so a shared call is charged to whoever
+     * started it; a caller that joined it and got a 429 back asks again as itself.
+     */
+    private static CompletableFuture<HttpResponse<byte[]>> coalescedGet(URI target, String accept, HttpExchange client,
+                                                                       RouteMetrics metrics) {
+        // requests carrying credentials are never shared between callers
+        if (client.getRequestHeaders().getFirst("Authorization") != null) return upstreamGet(target, accept, client);
+
+        String key = target + "|" + accept + "|" + client.getRequestHeaders().getFirst("X-API-Key");
+        CompletableFuture<HttpResponse<byte[]>> mine = new CompletableFuture<>();
+        CompletableFuture<HttpResponse<byte[]>> existing = IN_FLIGHT.putIfAbsent(key, mine);
+        if (existing != null) {
+            metrics.coalesced.increment();
+            return existing.thenCompose(resp -> (resp.statusCode() == 429)
+                    ? upstreamGet(target, accept, client)
+                    : CompletableFuture.completedFuture(resp));
+        }
+
+        upstreamGet(target, accept, client).whenComplete((resp, err) -> {
+            IN_FLIGHT.remove(key, mine);
+            if (err != null) mine.completeExceptionally(err);
+            else mine.complete(resp);
+        });
+        return mine;
+    }
+
+    private static CompletableFuture<HttpResponse<byte[]>> upstreamGet(URI target, String accept, HttpExchange client) {
+        HttpRequest.Builder b = HttpRequest.newBuilder(target).timeout(UPSTREAM_TIMEOUT).GET();
+        if (accept != null) b.header("Accept", accept);
+        copyHeaders(client, b, "Authorization", "X-API-Key");
+        return CLIENT.sendAsync(b.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    // The upstream's own client identification (RateLimiter) relies on X-Forwarded-For
+    private static void copyHeaders(HttpExchange exchange, HttpRequest.Builder b, String... headers) {
+        for (String h : headers) {
+            String v = exchange.getRequestHeaders().getFirst(h);
+            if (v != null) b.header(h, v);
+        }
+        b.header("X-Forwarded-For", exchange.getRemoteAddress().getAddress().getHostAddress());
+    }
+
+    private static int upstreamErrorStatus(Exception e) {
+        Throwable t = e;
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (t instanceof HttpTimeoutException) return 504;
+        if (t instanceof ConnectException || t instanceof IOException) return 502;
+        return 500;
+    }
+
+    private static String queryParam(String rawQuery, String name) {
+        if (rawQuery == null) return null;
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            String k = (eq < 0) ? param : param.substring(0, eq);
+            if (k.equals(name)) return (eq < 0) ? "" : java.net.URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    private static String env(String key, String fallback) {
+        String v = System.getenv(key);
+        return (v == null || v.trim().isEmpty()) ? fallback : v.trim();
+    }
+
+    // ---------- HTTP response helpers ----------
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        if (contentType != null) exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, (body.length == 0) ? -1 : body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    // Status, body, Content-Type and, on a 429, Retry-After
+    private static void sendUpstream(HttpExchange exchange, HttpResponse<byte[]> resp) throws IOException {
+        resp.headers().firstValue("Retry-After").ifPresent(v -> exchange.getResponseHeaders().set("Retry-After", v));
+        send(exchange, resp.statusCode(), resp.headers().firstValue("Content-Type").orElse(null), resp.body());
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, "application/json; charset=utf-8",
+                ("{\"error\":\"" + message + "\"}").getBytes(StandardCharsets.UTF_8));
+    }
+}
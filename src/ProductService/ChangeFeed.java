@@ -0,0 +1,197 @@
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ordered feed of product changes, served as server-sent events on
+ * GET /product/changes?since=<seq>.
+ *
+ * Writers only append to a fixed-size ring and wake the subscribers' writer threads,
+ * so a write request never waits on a subscriber. Each subscriber has its own writer
+ * thread and cursor into the ring; the ring is the bound on how far behind one may
+ * fall. One that falls more than a ring's worth behind gets an "event: resync" and is
+ * disconnected. One whose socket write stalls for longer than STALL_TIMEOUT_MS is cut
+ * off by the watchdog, which interrupts its writer: the socket channel is
+ * interruptible, so the connection is closed without flushing anything through the
+ * chunked stream, and only that subscriber's thread was ever blocked. Either way the
+ * client re-reads what it needs and reconnects with the last seq it applied.
+ *
+ * At most PRODUCT_FEED_MAX_SUBSCRIBERS (default 256) are connected at once.
+ *
+ * Seqs follow publish order; ProductService publishes each write while still holding
+ * the id's write lock, so changes to one product appear in the order they committed.
+ */
+public class ChangeFeed {
+
+    private static final long STALL_TIMEOUT_MS = 5000;
+    private static final int MAX_SUBSCRIBERS =
+            Integer.parseInt(System.getenv().getOrDefault("PRODUCT_FEED_MAX_SUBSCRIBERS", "256"));
+
+    static final class Event {
+        final long seq;
+        final byte[] frame; // complete SSE frame, built once for all subscribers
+
+        Event(long seq, byte[] frame) {
+            this.seq = seq;
+            this.frame = frame;
+        }
+    }
+
+    final class Subscriber {
+        final HttpExchange exchange;
+        final OutputStream out;
+        final boolean resyncFirst;        // asked for a seq we no longer have
+        long cursor;                      // next seq to send; only touched by the writer
+        volatile Thread writer;
+        volatile long writeStartedNanos;  // 0 when not inside a write
+        volatile boolean closed;
+
+        Subscriber(HttpExchange exchange, long cursor, boolean resyncFirst) {
+            this.exchange = exchange;
+            this.out = exchange.getResponseBody();
+            this.cursor = cursor;
+            this.resyncFirst = resyncFirst;
+        }
+    }
+
+    private final Event[] ring;
+    private final int mask;
+    private volatile long lastSeq = 0; // seq 0 is never published
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final LongAdder dropped = new LongAdder();
+
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "change-feed-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ChangeFeed(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1; // round up to a power of two
+        this.ring = new Event[size];
+        this.mask = size - 1;
+        watchdog.scheduleWithFixedDelay(this::dropStalled, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // ---------- Writers ----------
+
+    /** Appends one change; dataJson must be single-line JSON. Returns its seq. */
+    public long publish(String op, String dataJson) {
+        long seq;
+        synchronized (this) {
+            seq = lastSeq + 1;
+            String frame = "id: " + seq + "\nevent: " + op + "\ndata: " + dataJson + "\n\n";
+            ring[(int) (seq & mask)] = new Event(seq, frame.getBytes(StandardCharsets.UTF_8));
+            lastSeq = seq;
+        }
+        for (Subscriber s : subscribers) LockSupport.unpark(s.writer);
+        return seq;
+    }
+
+    // ---------- Subscribers ----------
+
+    /**
+     * Takes over the exchange and returns immediately; events are written by the
+     * subscriber's own writer thread. since == null starts at the next change,
+     * otherwise replay starts after 'since'.
+     *
+     * @return false, without touching the exchange, when the feed is full
+     */
+    public boolean subscribe(HttpExchange exchange, Long since) throws IOException {
+        if (subscribers.size() >= MAX_SUBSCRIBERS) return false;
+
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+
+        // older than the ring, or from before a restart: the client has to start over
+        long last = lastSeq;
+        long oldest = Math.max(1, last - ring.length + 1);
+        boolean stale = since != null && (since + 1 < oldest || since > last);
+        Subscriber s = new Subscriber(exchange, (since == null) ? last + 1 : since + 1, stale);
+
+        Thread writer = new Thread(() -> write(s), "change-feed-writer");
+        writer.setDaemon(true);
+        s.writer = writer;
+        subscribers.add(s);
+        writer.start();
+        return true;
+    }
+
+    public int subscriberCount() {
+        return subscribers.size();
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+
+    // Writer thread body: one per subscriber, ends when the subscriber is gone
+    private void write(Subscriber s) {
+        try {
+            if (s.resyncFirst) {
+                resync(s);
+                return;
+            }
+            while (!s.closed) {
+                long last = lastSeq;
+                if (s.cursor > last) {
+                    // publish() unparks us; the timeout only guards against a lost wake-up
+                    LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+                    continue;
+                }
+                while (s.cursor <= last) {
+                    Event e = ring[(int) (s.cursor & mask)];
+                    if (e == null || e.seq != s.cursor) { // overwritten before we got to it
+                        resync(s);
+                        return;
+                    }
+                    s.writeStartedNanos = System.nanoTime();
+                    s.out.write(e.frame);
+                    s.cursor++;
+                }
+                s.writeStartedNanos = System.nanoTime();
+                s.out.flush();
+                s.writeStartedNanos = 0;
+            }
+        } catch (IOException e) {
+            // client went away, or the watchdog interrupted us (ClosedByInterruptException)
+        } finally {
+            s.closed = true;
+            subscribers.remove(s);
+            try {
+                s.exchange.close(); // fails fast if the channel is already closed
+            } catch (RuntimeException ignored) {
+                // nothing left to clean up
+            }
+        }
+    }
+
+    private void resync(Subscriber s) throws IOException {
+        s.writeStartedNanos = System.nanoTime();
+        s.out.write(("event: resync\ndata: {\"last_seq\":" + lastSeq + "}\n\n").getBytes(StandardCharsets.UTF_8));
+        s.out.flush();
+        s.writeStartedNanos = 0;
+    }
+
+    private void dropStalled() {
+        long now = System.nanoTime();
+        for (Subscriber s : subscribers) {
+            long started = s.writeStartedNanos;
+            if (!s.closed && started != 0 && now - started > TimeUnit.MILLISECONDS.toNanos(STALL_TIMEOUT_MS)) {
+                s.closed = true;
+                dropped.increment();
+                // closes the socket channel under the blocked write; never blocks the watchdog
+                s.writer.interrupt();
+            }
+        }
+    }
+}
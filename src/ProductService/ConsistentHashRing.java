@@ -0,0 +1,64 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps product ids onto nodes with consistent hashing. Every node is placed on the
+ * ring at several points (virtual nodes) so adding one only takes ~1/N of the ids,
+ * spread evenly over the existing nodes.
+ */
+public class ConsistentHashRing<T> {
+
+    private final TreeMap<Long, T> ring = new TreeMap<>();
+    private final List<T> nodes = new ArrayList<>();
+    private final int virtualNodes;
+
+    public ConsistentHashRing(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    // nodeKey must be stable across restarts (e.g. the primary url), not a list index
+    public void add(String nodeKey, T node) {
+        for (int v = 0; v < virtualNodes; v++) {
+            ring.put(hashKey(nodeKey + "#" + v), node);
+        }
+        nodes.add(node);
+    }
+
+    public T nodeFor(int id) {
+        if (ring.isEmpty()) throw new IllegalStateException("No shards configured");
+        Map.Entry<Long, T> e = ring.ceilingEntry(hashId(id));
+        return (e != null) ? e.getValue() : ring.firstEntry().getValue();
+    }
+
+    public List<T> nodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    // murmur3 fmix64: consecutive ids land far apart on the ring
+    static long hashId(int id) {
+        long h = id;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long hashKey(String key) {
+        try {
+            byte[] d = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) h = (h << 8) | (d[i] & 0xff);
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,14 +1,99 @@
 import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class DatabaseManager {
 
     private static final String DB_URL = "jdbc:postgresql://db.qvmekyovznxapjzhyudt.supabase.co:5432/postgres?sslmode=require";
-    private static final String DB_USER = "postgres";
-    private static final String DB_PASSWORD = "HmNUB18zTR4Fjjqc";
+    private static final String DB_USER = System.getenv().getOrDefault("DB_USER", "postgres");
+    private static final String DB_PASSWORD = System.getenv().getOrDefault("DB_PASSWORD", "HmNUB18zTR4Fjjqc");
+
+    private static final String SELECT_COLUMNS = "SELECT id, name, description, price, quantity FROM products";
+
+    /*
+     * Products are hash-partitioned by id across the shards listed in PRODUCT_SHARDS
+     * ("primary[,replica...];primary[,replica...]"). Without it we run a single shard
+     * configured the same way as before (DB_URL / DB_REPLICA_URLS).
+     *
+     * While a new shard is being filled, PRODUCT_SHARDS_PREVIOUS holds the old layout:
+     * reads that miss on the new owner fall back to the old one, and writes first move
+     * the row over (see moveProduct / ShardRebalancer). A database listed in both
+     * layouts is one ReplicaRouter (ROUTERS), and shards are compared by primary url.
+     */
+    private static final Map<String, ReplicaRouter> ROUTERS = new LinkedHashMap<>();
+    private static final ConsistentHashRing<ReplicaRouter> SHARDS = buildRing(System.getenv("PRODUCT_SHARDS"));
+    private static final ConsistentHashRing<ReplicaRouter> PREVIOUS_SHARDS =
+            (System.getenv("PRODUCT_SHARDS_PREVIOUS") == null) ? null : buildRing(System.getenv("PRODUCT_SHARDS_PREVIOUS"));
+
+    // Concurrent getProduct calls for one id share a query; writes forget() the id
+    private static final SingleFlight<Integer, ProductService.Product> PRODUCT_READS = new SingleFlight<>(
+            Long.parseLong(System.getenv().getOrDefault("COALESCE_TIMEOUT_MS", "5000")));
+
+    // Fan-out for multi-shard reads
+    private static final ExecutorService FAN_OUT = Executors.newFixedThreadPool(
+            Math.max(2, allShards().size()), r -> {
+                Thread t = new Thread(r, "shard-fan-out");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private static ConsistentHashRing<ReplicaRouter> buildRing(String spec) {
+        String vnodes = System.getenv("PRODUCT_SHARD_VNODES");
+        ConsistentHashRing<ReplicaRouter> ring =
+                new ConsistentHashRing<>((vnodes == null) ? 128 : Integer.parseInt(vnodes.trim()));
+
+        if (spec == null || spec.trim().isEmpty()) {
+            ReplicaRouter only = ROUTERS.computeIfAbsent(ReplicaRouter.primaryUrlFromEnvironment(DB_URL),
+                    k -> ReplicaRouter.fromEnvironment(DB_URL, DB_USER, DB_PASSWORD));
+            ring.add(only.primaryUrl(), only);
+            return ring;
+        }
+
+        for (String shard : spec.split(";")) {
+            List<String> urls = ReplicaRouter.splitUrls(shard);
+            if (urls.isEmpty()) continue;
+            ReplicaRouter router = ROUTERS.computeIfAbsent(urls.get(0), primary -> new ReplicaRouter(primary,
+                    urls.subList(1, urls.size()), DB_USER, DB_PASSWORD, ReplicaRouter.modeFromEnvironment(),
+                    ReplicaRouter.maxLagFromEnvironment(), ReplicaRouter.healthIntervalFromEnvironment()));
+            ring.add(router.primaryUrl(), router);
+        }
+        return ring;
+    }
+
+    static ConsistentHashRing<ReplicaRouter> shards() {
+        return SHARDS;
+    }
+
+    static ConsistentHashRing<ReplicaRouter> previousShards() {
+        return PREVIOUS_SHARDS;
+    }
+
+    static boolean sameShard(ReplicaRouter a, ReplicaRouter b) {
+        return a.primaryUrl().equals(b.primaryUrl());
+    }
+
+    // Every distinct database, current layout first
+    private static List<ReplicaRouter> allShards() {
+        Map<String, ReplicaRouter> all = new LinkedHashMap<>();
+        for (ReplicaRouter r : SHARDS.nodes()) all.put(r.primaryUrl(), r);
+        if (PREVIOUS_SHARDS != null) {
+            for (ReplicaRouter r : PREVIOUS_SHARDS.nodes()) all.putIfAbsent(r.primaryUrl(), r);
+        }
+        return new ArrayList<>(all.values());
+    }
 
     // Match UserService naming
     public static void initialize() {
-        try (Connection c = DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+        for (ReplicaRouter shard : allShards()) {
+            initialize(shard);
+        }
+    }
+
+    private static void initialize(ReplicaRouter shard) {
+        try (Connection c = shard.openPrimary();
              Statement st = c.createStatement()) {
 
             st.executeUpdate(
@@ -33,13 +118,32 @@ public class DatabaseManager {
         }
     }
 
-    private static Connection openConn() throws SQLException {
-        return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+    // Primary of the shard owning id; during a migration the row is moved there first
+    private static Connection openConn(int id) throws SQLException {
+        ReplicaRouter owner = SHARDS.nodeFor(id);
+        if (PREVIOUS_SHARDS != null) {
+            ReplicaRouter previous = PREVIOUS_SHARDS.nodeFor(id);
+            if (!sameShard(previous, owner)) moveProduct(previous, owner, id);
+        }
+        return owner.openPrimary();
+    }
+
+    /*
+     * Replicas may not have replayed a move yet: the new owner's could still lack the row
+     * while the old one's serves the pre-move copy, or has already replayed the delete.
+     * So while PRODUCT_SHARDS_PREVIOUS is set, reads go to the primaries.
+     */
+    private static Connection openRead(ReplicaRouter shard) throws SQLException {
+        return (PREVIOUS_SHARDS != null) ? shard.openPrimary() : shard.openRead();
     }
 
     public static boolean productExists(int id) throws SQLException {
-        try (Connection c = openConn();
-             PreparedStatement ps = c.prepareStatement("SELECT 1 FROM products WHERE id=?")) {
+        return getProduct(id) != null;
+    }
+
+    // Pre-checks run on the caller's (primary) connection so they see the latest writes
+    private static boolean productExists(Connection c, int id) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("SELECT 1 FROM products WHERE id=?")) {
             ps.setInt(1, id);
             try (ResultSet rs = ps.executeQuery()) {
                 return rs.next();
@@ -48,27 +152,161 @@ public class DatabaseManager {
     }
 
     public static ProductService.Product getProduct(int id) throws SQLException {
-        try (Connection c = openConn();
-             PreparedStatement ps = c.prepareStatement(
-                     "SELECT id, name, description, price, quantity FROM products WHERE id=?")) {
+        try (Profiling.DbSpan span = Profiling.db("getProduct", "SELECT")) {
+            return span.row(PRODUCT_READS.get(id, () -> loadProduct(id)));
+        }
+    }
+
+    static String coalescingStatsJson() {
+        return PRODUCT_READS.statsJson();
+    }
+
+    private static ProductService.Product loadProduct(int id) throws SQLException {
+        ReplicaRouter owner = SHARDS.nodeFor(id);
+        ProductService.Product p = readProduct(owner, id);
+        if (p != null || PREVIOUS_SHARDS == null) return p;
+
+        ReplicaRouter previous = PREVIOUS_SHARDS.nodeFor(id);
+        if (sameShard(previous, owner)) return null;
+        p = readProduct(previous, id);
+        // a mover inserts into the new shard before deleting from the old one,
+        // so a row that vanished from both in between is on the owner by now
+        return (p != null) ? p : readProduct(owner, id);
+    }
+
+    private static ProductService.Product readProduct(ReplicaRouter shard, int id) throws SQLException {
+        try (Connection c = openRead(shard)) {
+            return getProduct(c, id);
+        }
+    }
+
+    // Read-modify-write callers must not see a lagging replica
+    public static ProductService.Product getProductForUpdate(int id) throws SQLException {
+        try (Profiling.DbSpan span = Profiling.db("getProductForUpdate", "SELECT");
+             Connection c = openConn(id)) {
+            return span.row(getProduct(c, id));
+        }
+    }
+
+    private static ProductService.Product getProduct(Connection c, int id) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement(SELECT_COLUMNS + " WHERE id=?")) {
             ps.setInt(1, id);
             try (ResultSet rs = ps.executeQuery()) {
                 if (!rs.next()) return null;
-                return new ProductService.Product(
-                        rs.getInt("id"),
-                        rs.getString("name"),
-                        rs.getString("description"),
-                        rs.getDouble("price"),
-                        rs.getInt("quantity")
-                );
+                return readRow(rs);
+            }
+        }
+    }
+
+    private static ProductService.Product readRow(ResultSet rs) throws SQLException {
+        return new ProductService.Product(
+                rs.getInt("id"),
+                rs.getString("name"),
+                rs.getString("description"),
+                rs.getDouble("price"),
+                rs.getInt("quantity")
+        );
+    }
+
+    // Full catalog, scanned on every shard in parallel
+    public static List<ProductService.Product> listProducts() throws SQLException {
+        try (Profiling.DbSpan span = Profiling.db("listProducts", "SELECT")) {
+            List<Future<List<ProductService.Product>>> pending = new ArrayList<>();
+            for (ReplicaRouter shard : allShards()) {
+                pending.add(FAN_OUT.submit(() -> query(shard, SELECT_COLUMNS)));
+            }
+
+            // a row caught mid-move can show up on two shards; keep one copy
+            Map<Integer, ProductService.Product> merged = new TreeMap<>();
+            for (Future<List<ProductService.Product>> f : pending) {
+                for (ProductService.Product p : await(f)) merged.putIfAbsent(p.id, p);
+            }
+            span.rows(merged.size());
+            return new ArrayList<>(merged.values());
+        }
+    }
+
+    private static List<ProductService.Product> query(ReplicaRouter shard, String sql) throws SQLException {
+        List<ProductService.Product> out = new ArrayList<>();
+        try (Connection c = openRead(shard);
+             PreparedStatement ps = c.prepareStatement(sql)) {
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) out.add(readRow(rs));
+            }
+        }
+        return out;
+    }
+
+    private static List<ProductService.Product> await(Future<List<ProductService.Product>> f) throws SQLException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted during shard fan-out", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+            throw new SQLException("Shard fan-out failed", e.getCause());
+        }
+    }
+
+    /**
+     * Moves one row from its old shard to its new owner. The row is locked on the old
+     * shard for the whole move, so concurrent movers (request threads and the
+     * rebalancer) serialize, and it is inserted on the new shard before it is deleted
+     * from the old one, so readers always find it on at least one of them. That holds
+     * on the primaries only, which is why openRead skips replicas during a migration.
+     *
+     * @return true if this call moved the row
+     */
+    static boolean moveProduct(ReplicaRouter from, ReplicaRouter to, int id) throws SQLException {
+        // the insert would be a no-op and the delete would drop the only copy
+        if (sameShard(from, to)) return false;
+
+        try (Connection src = from.openPrimary()) {
+            src.setAutoCommit(false);
+            try {
+                ProductService.Product p;
+                try (PreparedStatement ps = src.prepareStatement(SELECT_COLUMNS + " WHERE id=? FOR UPDATE")) {
+                    ps.setInt(1, id);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        p = rs.next() ? readRow(rs) : null;
+                    }
+                }
+                if (p == null) {
+                    src.commit();
+                    return false;
+                }
+
+                try (Connection dst = to.openPrimary();
+                     PreparedStatement ps = dst.prepareStatement(
+                             "INSERT INTO products(id, name, description, price, quantity) VALUES(?,?,?,?,?) " +
+                                     "ON CONFLICT (id) DO NOTHING")) {
+                    ps.setInt(1, p.id);
+                    ps.setString(2, p.name);
+                    ps.setString(3, p.description);
+                    ps.setDouble(4, p.price);
+                    ps.setInt(5, p.quantity);
+                    ps.executeUpdate();
+                }
+
+                try (PreparedStatement ps = src.prepareStatement("DELETE FROM products WHERE id=?")) {
+                    ps.setInt(1, id);
+                    ps.executeUpdate();
+                }
+                src.commit();
+                return true;
+            } catch (SQLException e) {
+                src.rollback();
+                throw e;
             }
         }
     }
 
     // returns false if id already exists
     public static boolean createProduct(ProductService.Product p) throws SQLException {
-        try (Connection c = openConn()) {
-            if (productExists(p.id)) return false;
+        try (Profiling.DbSpan span = Profiling.db("createProduct", "INSERT");
+             Connection c = openConn(p.id)) {
+            if (productExists(c, p.id)) return false;
 
             try (PreparedStatement ps = c.prepareStatement(
                     "INSERT INTO products(id, name, description, price, quantity) VALUES(?,?,?,?,?)")) {
@@ -77,7 +315,8 @@ public class DatabaseManager {
                 ps.setString(3, p.description);
                 ps.setDouble(4, p.price);
                 ps.setInt(5, p.quantity);
-                ps.executeUpdate();
+                span.rows(ps.executeUpdate());
+                PRODUCT_READS.forget(p.id);
                 return true;
             }
         }
@@ -85,7 +324,8 @@ public class DatabaseManager {
 
     // returns false if id not found
     public static boolean updateProduct(ProductService.Product p) throws SQLException {
-        try (Connection c = openConn();
+        try (Profiling.DbSpan span = Profiling.db("updateProduct", "UPDATE");
+             Connection c = openConn(p.id);
              PreparedStatement ps = c.prepareStatement(
                      "UPDATE products SET name=?, description=?, price=?, quantity=? WHERE id=?")) {
             ps.setString(1, p.name);
@@ -95,6 +335,8 @@ public class DatabaseManager {
             ps.setInt(5, p.id);
 
             int affected = ps.executeUpdate();
+            span.rows(affected);
+            PRODUCT_READS.forget(p.id);
             return affected > 0;
         }
     }
@@ -102,8 +344,9 @@ public class DatabaseManager {
     public enum DeleteResult { NOT_FOUND, MISMATCH, DELETED }
 
     public static DeleteResult deleteProduct(int id, String name, double price, int quantity) throws SQLException {
-        try (Connection c = openConn()) {
-            if (!productExists(id)) return DeleteResult.NOT_FOUND;
+        try (Profiling.DbSpan span = Profiling.db("deleteProduct", "DELETE");
+             Connection c = openConn(id)) {
+            if (!productExists(c, id)) return DeleteResult.NOT_FOUND;
 
             try (PreparedStatement ps = c.prepareStatement(
                     "DELETE FROM products WHERE id=? AND name=? AND price=? AND quantity=?")) {
@@ -113,6 +356,8 @@ public class DatabaseManager {
                 ps.setInt(4, quantity);
 
                 int affected = ps.executeUpdate();
+                span.rows(affected);
+                PRODUCT_READS.forget(id);
                 return (affected > 0) ? DeleteResult.DELETED : DeleteResult.MISMATCH;
             }
         }
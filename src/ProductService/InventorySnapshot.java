@@ -0,0 +1,223 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * In-memory columnar copy of the products table for the GET /product/stats
+ * endpoints: three parallel primitive arrays (id, price in cents, quantity),
+ * loaded once at startup and then kept current from ProductHandler's writes.
+ * Aggregates scan the arrays with parallel streams and never touch the database.
+ *
+ * Only writes made through this process are seen; with several ProductService
+ * instances each one reports on its own view until it is restarted.
+ *
+ * Until load() succeeds the snapshot is not ready and the stats endpoints refuse to
+ * answer. Writes made before then are kept (latest per id) and applied on top of the
+ * loaded rows, so a load that races with them still ends up current.
+ *
+ * Prices are kept as whole cents. ProductService rejects prices above MAX_PRICE, so
+ * every price converts exactly; a larger one already in the database is clamped to
+ * MAX_PRICE here and logged. total_value is exact however large it gets.
+ */
+public class InventorySnapshot {
+
+    public static final double MAX_PRICE = 1e16; // 1e18 cents: fits a long with headroom
+
+    private int[] ids = new int[1024];
+    private long[] priceCents = new long[1024];
+    private int[] quantities = new int[1024];
+    private int size = 0;
+    private final Map<Integer, Integer> index = new HashMap<>(); // id -> row
+    private boolean loaded = false;
+    private final Map<Integer, ProductService.Product> pending = new HashMap<>(); // before load; null = removed
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Below this many rows a sequential scan beats fork/join overhead
+    private static final int PARALLEL_THRESHOLD = 10_000;
+
+    // ---------- Maintenance ----------
+
+    public void load(Collection<ProductService.Product> products) {
+        lock.writeLock().lock();
+        try {
+            size = 0;
+            index.clear();
+            for (ProductService.Product p : products) upsertLocked(p);
+            for (Map.Entry<Integer, ProductService.Product> e : pending.entrySet()) {
+                if (e.getValue() != null) upsertLocked(e.getValue());
+                else removeLocked(e.getKey());
+            }
+            pending.clear();
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isLoaded() {
+        lock.readLock().lock();
+        try {
+            return loaded;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void upsert(ProductService.Product p) {
+        lock.writeLock().lock();
+        try {
+            if (loaded) upsertLocked(p);
+            else pending.put(p.id, p);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void upsertLocked(ProductService.Product p) {
+        Integer row = index.get(p.id);
+        if (row == null) {
+            if (size == ids.length) grow();
+            row = size++;
+            index.put(p.id, row);
+            ids[row] = p.id;
+        }
+        priceCents[row] = toCents(p);
+        quantities[row] = p.quantity;
+    }
+
+    public void remove(int id) {
+        lock.writeLock().lock();
+        try {
+            if (loaded) removeLocked(id);
+            else pending.put(id, null);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeLocked(int id) {
+        Integer row = index.remove(id);
+        if (row == null) return;
+        // keep the columns dense: move the last row into the hole
+        int last = --size;
+        if (row != last) {
+            ids[row] = ids[last];
+            priceCents[row] = priceCents[last];
+            quantities[row] = quantities[last];
+            index.put(ids[row], row);
+        }
+    }
+
+    private void grow() {
+        int n = ids.length * 2;
+        ids = Arrays.copyOf(ids, n);
+        priceCents = Arrays.copyOf(priceCents, n);
+        quantities = Arrays.copyOf(quantities, n);
+    }
+
+    private static long toCents(ProductService.Product p) {
+        if (p.price <= MAX_PRICE) return Math.round(p.price * 100);
+        Log.info("inventory", "price of product " + p.id + " above " + MAX_PRICE + ", clamped in stats");
+        return Math.round(MAX_PRICE * 100);
+    }
+
+    private IntStream rows() {
+        IntStream rows = IntStream.range(0, size);
+        return (size >= PARALLEL_THRESHOLD) ? rows.parallel() : rows;
+    }
+
+    // ---------- Aggregates ----------
+
+    public String summaryJson(int lowStockThreshold) {
+        lock.readLock().lock();
+        try {
+            int[] q = quantities;
+            long[] c = priceCents;
+            long units = rows().mapToLong(i -> q[i]).sum();
+            String value;
+            try {
+                value = cents(rows().mapToLong(i -> Math.multiplyExact(c[i], (long) q[i])).reduce(0, Math::addExact));
+            } catch (ArithmeticException e) {
+                // more than a long's worth of cents: add it up again exactly
+                value = new BigDecimal(rows()
+                        .mapToObj(i -> BigInteger.valueOf(c[i]).multiply(BigInteger.valueOf(q[i])))
+                        .reduce(BigInteger.ZERO, BigInteger::add), 2).toPlainString();
+            }
+            long low = rows().filter(i -> q[i] <= lowStockThreshold).count();
+            return "{\"products\":" + size +
+                    ",\"total_units\":" + units +
+                    ",\"total_value\":" + value +
+                    ",\"low_stock_threshold\":" + lowStockThreshold +
+                    ",\"low_stock_count\":" + low + "}";
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Lowest quantities first, ties by id
+    public String lowStockJson(int threshold, int limit) {
+        lock.readLock().lock();
+        try {
+            int[] q = quantities;
+            int[] id = ids;
+            long[] c = priceCents;
+            int[] rows = rows()
+                    .filter(i -> q[i] <= threshold)
+                    .boxed()
+                    .sorted((a, b) -> (q[a] != q[b]) ? Integer.compare(q[a], q[b]) : Integer.compare(id[a], id[b]))
+                    .limit(limit)
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+
+            StringBuilder sb = new StringBuilder("{\"threshold\":").append(threshold).append(",\"products\":[");
+            for (int k = 0; k < rows.length; k++) {
+                int i = rows[k];
+                if (k > 0) sb.append(',');
+                sb.append("{\"id\":").append(id[i])
+                        .append(",\"quantity\":").append(q[i])
+                        .append(",\"price\":").append(cents(c[i])).append('}');
+            }
+            return sb.append("]}").toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Equal-width buckets between the cheapest and the most expensive product
+    public String priceHistogramJson(int buckets) {
+        lock.readLock().lock();
+        try {
+            long[] c = priceCents;
+            if (size == 0) return "{\"buckets\":[]}";
+            long min = rows().mapToLong(i -> c[i]).min().getAsLong();
+            long max = rows().mapToLong(i -> c[i]).max().getAsLong();
+            long width = (max - min) / buckets + 1; // ceil((max - min + 1) / buckets), without overflowing
+
+            long[] counts = rows().collect(
+                    () -> new long[buckets],
+                    (acc, i) -> acc[(int) Math.min(buckets - 1, (c[i] - min) / width)]++,
+                    (a, b) -> { for (int k = 0; k < buckets; k++) a[k] += b[k]; });
+
+            StringBuilder sb = new StringBuilder("{\"buckets\":[");
+            for (int k = 0; k < buckets; k++) {
+                if (k > 0) sb.append(',');
+                sb.append("{\"from\":").append(cents(min + k * width))
+                        .append(",\"to\":").append(cents(min + (k + 1) * width))
+                        .append(",\"count\":").append(counts[k]).append('}');
+            }
+            return sb.append("]}").toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static String cents(long cents) {
+        return (cents < 0 ? "-" : "") + Math.abs(cents / 100) + "." + String.format("%02d", Math.abs(cents % 100));
+    }
+}
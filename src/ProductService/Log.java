@@ -0,0 +1,294 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured key=value logging that never blocks a request thread.
+ *
+ * Callers format one line and drop it into a bounded lock-free ring; a single
+ * background thread drains it into LOG_DIR/<service>.log (default ./logs), rolling
+ * at LOG_MAX_BYTES and keeping LOG_KEEP old files. When the ring is full the line
+ * is counted in dropped() instead of waiting. Identical errors are sampled: the
+ * first ERROR_BURST per ERROR_WINDOW_MS are written, then one in ERROR_SAMPLE with
+ * a suppressed=<n> count.
+ */
+public final class Log {
+
+    private static final int CAPACITY = 8192; // power of two
+    private static final int MASK = CAPACITY - 1;
+
+    private static final long ERROR_WINDOW_MS = 10_000;
+    private static final int ERROR_BURST = 5;
+    private static final int ERROR_SAMPLE = 100;
+    private static final int MAX_ERROR_KEYS = 1024;
+
+    // Bounded MPSC ring (Vyukov): a slot is free for position p when seq[p & MASK] == p,
+    // and holds the line for p when it is p + 1.
+    private static final String[] SLOTS = new String[CAPACITY];
+    private static final AtomicLongArray SEQ = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static long head = 0; // writer thread only
+    static {
+        for (int i = 0; i < CAPACITY; i++) SEQ.set(i, i);
+    }
+
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final AtomicLong REQUEST_IDS = new AtomicLong();
+    private static final ConcurrentHashMap<String, ErrorWindow> ERRORS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<StringBuilder> LINE = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private static volatile String service = "service";
+    private static volatile Thread writer;
+
+    private Log() {
+    }
+
+    // ---------- Lifecycle ----------
+
+    public static synchronized void start(String serviceName) {
+        if (writer != null) return;
+        service = serviceName;
+        Thread t = new Thread(new Writer0(serviceName), "log-writer");
+        t.setDaemon(true);
+        t.start();
+        writer = t;
+    }
+
+    public static long nextRequestId() {
+        return REQUEST_IDS.incrementAndGet();
+    }
+
+    public static long dropped() {
+        return DROPPED.sum();
+    }
+
+    // ---------- Events ----------
+
+    public static void info(String event, String message) {
+        StringBuilder sb = begin("INFO", event);
+        kv(sb, "msg", message);
+        offer(sb);
+    }
+
+    // One line per handled request
+    public static void request(long reqId, String method, String command, int status, long startNanos) {
+        StringBuilder sb = begin("INFO", "request");
+        sb.append(" req=").append(reqId);
+        kv(sb, "method", method);
+        kv(sb, "cmd", command);
+        sb.append(" status=").append(status);
+        sb.append(" latency_us=").append((System.nanoTime() - startNanos) / 1000);
+        offer(sb);
+    }
+
+    public static void error(long reqId, String command, String message, Throwable t) {
+        String key = command + '|' + message + '|' + ((t == null) ? "" : t.getClass().getName());
+        long suppressed = admitError(key);
+        if (suppressed < 0) return;
+
+        StringBuilder sb = begin("ERROR", "error");
+        if (reqId > 0) sb.append(" req=").append(reqId);
+        kv(sb, "cmd", command);
+        kv(sb, "msg", message);
+        if (t != null) {
+            kv(sb, "exc", t.getClass().getSimpleName());
+            kv(sb, "exc_msg", t.getMessage());
+            StackTraceElement[] st = t.getStackTrace();
+            if (st.length > 0) kv(sb, "at", st[0].getClassName() + "." + st[0].getMethodName() + ":" + st[0].getLineNumber());
+        }
+        if (suppressed > 0) sb.append(" suppressed=").append(suppressed);
+        offer(sb);
+    }
+
+    public static void error(String message, Throwable t) {
+        error(0, null, message, t);
+    }
+
+    // ---------- Formatting ----------
+
+    private static StringBuilder begin(String level, String event) {
+        StringBuilder sb = LINE.get();
+        sb.setLength(0);
+        sb.append("ts=").append(System.currentTimeMillis());
+        sb.append(" level=").append(level);
+        sb.append(" svc=").append(service);
+        sb.append(" event=").append(event);
+        return sb;
+    }
+
+    private static void kv(StringBuilder sb, String key, String value) {
+        if (value == null) return;
+        sb.append(' ').append(key).append('=');
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=';
+        }
+        if (!quote) {
+            sb.append(value);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c == '\n') sb.append("\\n");
+            else if (c == '\r') sb.append("\\r");
+            else sb.append(c);
+        }
+        sb.append('"');
+    }
+
+    // ---------- Error sampling ----------
+
+    private static final class ErrorWindow {
+        volatile long startMillis;
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong suppressed = new AtomicLong();
+
+        ErrorWindow(long now) {
+            startMillis = now;
+        }
+    }
+
+    /** @return -1 to skip this error, otherwise how many were skipped since the last one written */
+    private static long admitError(String key) {
+        long now = System.currentTimeMillis();
+        if (ERRORS.size() > MAX_ERROR_KEYS) ERRORS.clear(); // bounded; worst case we log a few extra
+        ErrorWindow w = ERRORS.computeIfAbsent(key, k -> new ErrorWindow(now));
+
+        if (now - w.startMillis > ERROR_WINDOW_MS) {
+            w.startMillis = now;
+            w.count.set(0);
+        }
+        long n = w.count.incrementAndGet();
+        if (n <= ERROR_BURST || n % ERROR_SAMPLE == 0) return w.suppressed.getAndSet(0);
+        w.suppressed.incrementAndGet();
+        return -1;
+    }
+
+    // ---------- Ring ----------
+
+    private static void offer(StringBuilder sb) {
+        String line = sb.toString();
+        while (true) {
+            long pos = TAIL.get();
+            int idx = (int) (pos & MASK);
+            long diff = SEQ.get(idx) - pos;
+            if (diff == 0) {
+                if (TAIL.compareAndSet(pos, pos + 1)) {
+                    SLOTS[idx] = line;
+                    SEQ.set(idx, pos + 1); // no wakeup: the writer polls, keeping this path syscall-free
+                    return;
+                }
+            } else if (diff < 0) {
+                DROPPED.increment(); // full
+                return;
+            }
+            // another producer claimed pos; retry with the new tail
+        }
+    }
+
+    private static String poll() {
+        int idx = (int) (head & MASK);
+        if (SEQ.get(idx) != head + 1) return null;
+        String line = SLOTS[idx];
+        SLOTS[idx] = null;
+        SEQ.set(idx, head + CAPACITY);
+        head++;
+        return line;
+    }
+
+    // ---------- Background writer ----------
+
+    private static final class Writer0 implements Runnable {
+        private final File dir = new File(System.getenv().getOrDefault("LOG_DIR", "logs"));
+        private final long maxBytes = Long.parseLong(System.getenv().getOrDefault("LOG_MAX_BYTES", "10485760"));
+        private final int keep = Integer.parseInt(System.getenv().getOrDefault("LOG_KEEP", "5"));
+        private final String name;
+        private Writer out;
+        private long written;
+        private long reportedDrops;
+
+        Writer0(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    String line = poll();
+                    if (line == null) {
+                        if (out != null) out.flush();
+                        reportDrops();
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                        continue;
+                    }
+                    write(line);
+                } catch (IOException e) {
+                    // disk trouble: this line is lost, reopen after a pause; producers only ever see drops
+                    closeQuietly();
+                    LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+                }
+            }
+        }
+
+        private void reportDrops() throws IOException {
+            long drops = DROPPED.sum();
+            if (drops != reportedDrops) {
+                reportedDrops = drops;
+                write("ts=" + System.currentTimeMillis() + " level=WARN svc=" + name + " event=log_dropped total=" + drops);
+                out.flush();
+            }
+        }
+
+        private void write(String line) throws IOException {
+            if (out == null) open();
+            out.write(line);
+            out.write('\n');
+            written += line.length() + 1;
+            if (written >= maxBytes) roll();
+        }
+
+        private File file(int n) {
+            return new File(dir, (n == 0) ? name + ".log" : name + ".log." + n);
+        }
+
+        private void open() throws IOException {
+            dir.mkdirs();
+            File f = file(0);
+            written = f.length();
+            out = new OutputStreamWriter(new FileOutputStream(f, true), StandardCharsets.UTF_8);
+        }
+
+        private void roll() throws IOException {
+            out.close();
+            out = null;
+            file(keep).delete();
+            for (int i = keep - 1; i >= 0; i--) {
+                File f = file(i);
+                if (f.exists()) f.renameTo(file(i + 1));
+            }
+            open();
+        }
+
+        private void closeQuietly() {
+            try {
+                if (out != null) out.close();
+            } catch (IOException ignored) {
+                // already failing
+            }
+            out = null;
+        }
+    }
+}
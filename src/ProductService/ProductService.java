@@ -12,6 +12,7 @@ import java.math.BigDecimal;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.util.concurrent.Executors;
 
 public class ProductService {
@@ -19,6 +20,28 @@ public class ProductService {
     // IMPORTANT: UserService.java uses 8081. Avoid collision.
     private static final int PORT = 8082;
 
+    // Every successful create/update/delete, for GET /product/changes
+    static final ChangeFeed CHANGES = new ChangeFeed(
+            Integer.parseInt(System.getenv().getOrDefault("PRODUCT_FEED_CAPACITY", "4096")));
+
+    // Checked before anything else in ProductHandler
+    static final RateLimiter LIMITER = new RateLimiter();
+
+    // Columnar copy of the catalog for GET /product/stats
+    static final InventorySnapshot INVENTORY = new InventorySnapshot();
+    private static final int INVENTORY_RETRY_SECONDS = 5;
+
+    // Held from a write's DB call through its recordChange, so changes to one id reach
+    // CHANGES and INVENTORY in commit order
+    private static final Object[] WRITE_LOCKS = new Object[64];
+    static {
+        for (int i = 0; i < WRITE_LOCKS.length; i++) WRITE_LOCKS[i] = new Object();
+    }
+
+    private static Object writeLock(int id) {
+        return WRITE_LOCKS[Math.floorMod(id, WRITE_LOCKS.length)];
+    }
+
     // ---------- Model ----------
     public static class Product {
         int id;
@@ -45,12 +68,98 @@ public class ProductService {
                     "}";
         }
 
+        // Same fields as toJson(), in the layout described on Binary
+        byte[] toBinary() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + name.length() + description.length());
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(id);
+                Binary.writeString(out, name);
+                Binary.writeString(out, description);
+                out.writeDouble(price);
+                out.writeInt(quantity);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // in-memory stream
+            }
+            return bytes.toByteArray();
+        }
+
+        // Single-line form for the change feed (SSE data cannot span lines)
+        JsonObject toJsonObject() {
+            JsonObject o = new JsonObject();
+            o.addProperty("id", id);
+            o.addProperty("name", name);
+            o.addProperty("description", description);
+            o.addProperty("price", price);
+            o.addProperty("quantity", quantity);
+            return o;
+        }
+
     private static String escape(String s) {
             if (s == null) return "";
             return s.replace("\\", "\\\\").replace("\"", "\\\"");
         }
     }
 
+    /**
+     * Compact alternative to JSON for service-to-service callers, selected with
+     * Content-Type (requests) and Accept (responses) set to MEDIA_TYPE.
+     * All numbers are big-endian; a string is an int32 byte length (-1 for null)
+     * followed by UTF-8 bytes.
+     *
+     * Product:  int32 id | string name | string description | float64 price | int32 quantity
+     * Request:  string command | uint8 presence mask | present fields, in mask order:
+     *           bit0 int32 id, bit1 string name, bit2 string description,
+     *           bit3 float64 price, bit4 int32 quantity
+     *
+     * Error and status bodies are always JSON.
+     */
+    static class Binary {
+        static final String MEDIA_TYPE = "application/x-product-bin";
+
+        static boolean accepts(HttpExchange ex) {
+            String accept = ex.getRequestHeaders().getFirst("Accept");
+            return accept != null && accept.contains(MEDIA_TYPE);
+        }
+
+        static boolean isBinaryBody(HttpExchange ex) {
+            String type = ex.getRequestHeaders().getFirst("Content-Type");
+            return type != null && type.startsWith(MEDIA_TYPE);
+        }
+
+        static void writeString(DataOutputStream out, String s) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        static String readString(DataInputStream in) throws IOException {
+            int len = in.readInt();
+            if (len < 0) return null;
+            if (len > in.available()) throw new EOFException("string length exceeds body");
+            byte[] b = new byte[len];
+            in.readFully(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        // Decoded into the same shape the JSON path produces, so validation is shared
+        static JsonObject decodeRequest(byte[] body) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            JsonObject o = new JsonObject();
+            o.addProperty("command", readString(in));
+            int mask = in.readUnsignedByte();
+            if ((mask & 0x01) != 0) o.addProperty("id", in.readInt());
+            if ((mask & 0x02) != 0) o.addProperty("name", readString(in));
+            if ((mask & 0x04) != 0) o.addProperty("description", readString(in));
+            if ((mask & 0x08) != 0) o.addProperty("price", in.readDouble());
+            if ((mask & 0x10) != 0) o.addProperty("quantity", in.readInt());
+            return o;
+        }
+    }
+
     // ---- validation helpers ----
     private static boolean isBlank(String s) {
         return s == null || s.trim().isEmpty();
@@ -94,6 +203,14 @@ public class ProductService {
         }
     }
 
+    // Stats keep prices as whole cents in a long; see InventorySnapshot.MAX_PRICE
+    private static void requirePriceInRange(HttpExchange ex, Double value) throws IOException {
+        if (value != null && value > InventorySnapshot.MAX_PRICE) {
+            sendJson(ex, 400, "{\"error\":\"Field must be <= " + InventorySnapshot.MAX_PRICE + ": price\"}");
+            throw new IllegalArgumentException("Invalid price");
+        }
+    }
+
     // For PATCH-like update: validate only if provided
     private static void validateOptionalNonBlank(HttpExchange ex, String value, String field) throws IOException {
         if (value != null && isBlank(value)) {
@@ -118,41 +235,94 @@ public class ProductService {
 
     // ---------- Main ----------
     public static void main(String[] args) throws IOException {
+        Log.start("product");
+        Profiling.start("product", 9082);
         DatabaseManager.initialize();
 
+        loadInventory();
+
         HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
         server.setExecutor(Executors.newFixedThreadPool(20));
         server.createContext("/product", new ProductHandler());
         server.start();
 
+        Log.info("startup", "ProductService started on port " + PORT);
         System.out.println("ProductService started on port " + PORT);
-        System.out.println("SQLite DB: products.db");
+    }
+
+    // Retried in the background until it succeeds; /product/stats answers 503 until then
+    private static void loadInventory() {
+        try {
+            INVENTORY.load(DatabaseManager.listProducts());
+        } catch (SQLException | RuntimeException e) {
+            Log.error("inventory snapshot load failed, retrying in " + INVENTORY_RETRY_SECONDS + "s", e);
+            Thread retry = new Thread(() -> {
+                try {
+                    Thread.sleep(INVENTORY_RETRY_SECONDS * 1000L);
+                    loadInventory();
+                } catch (InterruptedException ignored) {
+                    // shutting down
+                }
+            }, "inventory-load");
+            retry.setDaemon(true);
+            retry.start();
+        }
     }
 
     static class ProductHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            Profiling.beginRequest();
+            RequestContext ctx = CONTEXT.get();
+            ctx.reqId = Log.nextRequestId();
+            ctx.command = null;
+            String method = exchange.getRequestMethod();
             try {
-                String method = exchange.getRequestMethod();
+                // before the body is read, so a flooding client costs as little as possible
+                long waitMs = LIMITER.acquire(exchange);
+                if (waitMs > 0) {
+                    exchange.getResponseHeaders().set("Retry-After", String.valueOf((waitMs + 999) / 1000));
+                    sendJson(exchange, 429, "{\"error\":\"Too many requests\"}");
+                    return;
+                }
 
                 if ("POST".equalsIgnoreCase(method)) {
                     handlePost(exchange);
                 } else if ("GET".equalsIgnoreCase(method)) {
+                    setCommand("get");
                     handleGet(exchange);
                 } else {
                     exchange.sendResponseHeaders(405, 0);
                     exchange.close();
                 }
             } catch (Exception e) {
+                logError("unhandled exception", e);
                 sendJson(exchange, 500, "{\"error\":\"Internal server error\"}");
+            } finally {
+                Log.request(ctx.reqId, method, ctx.command, exchange.getResponseCode(), start);
+                Profiling.endRequest(exchange.getResponseCode());
             }
         }
 
         // -------- POST /product --------
         private void handlePost(HttpExchange exchange) throws IOException {
             try {
-                String body = readBody(exchange);
-                JsonObject json = parseJsonObject(exchange, body);
+                JsonObject json;
+                long parseStart;
+                if (Binary.isBinaryBody(exchange)) {
+                    byte[] raw = readBodyBytes(exchange);
+                    Profiling.bodySize(raw.length);
+                    parseStart = System.nanoTime();
+                    json = parseBinaryObject(exchange, raw);
+                } else {
+                    byte[] raw = readBodyBytes(exchange);
+                    Profiling.bodySize(raw.length);
+                    String body = readBody(raw);
+                    parseStart = System.nanoTime();
+                    json = parseJsonObject(exchange, body);
+                }
+                Profiling.parseTime(System.nanoTime() - parseStart);
 
                 String command = jString(json, "command");
                 Integer id = jIntStrict(json, "id");  // MUST be integer
@@ -161,6 +331,7 @@ public class ProductService {
                 requirePositiveInt(exchange, id, "id");
 
                 command = command.trim().toLowerCase();
+                setCommand(command);
 
                 switch (command) {
                     case "create": handleCreate(exchange, json, id); break;
@@ -183,6 +354,7 @@ public class ProductService {
                 requireNonBlank(exchange, name, "name");
                 requireNonBlank(exchange, description, "description");
                 requireNonNegativeDouble(exchange, price, "price");
+                requirePriceInRange(exchange, price);
                 requireNonNegativeInt(exchange, quantity, "quantity");
             } catch (IllegalArgumentException ignored) {
                 return;
@@ -191,17 +363,22 @@ public class ProductService {
             Product p = new Product(id, name, description, price, quantity);
 
             try {
-                boolean created = DatabaseManager.createProduct(p);
+                boolean created;
+                synchronized (writeLock(id)) {
+                    created = DatabaseManager.createProduct(p);
+                    if (created) recordChange("create", p.id, p);
+                }
                 if (!created) {
                     sendJson(exchange, 409, "{\"error\":\"Product id already exists\"}");
                     return;
                 }
             } catch (SQLException e) {
+                logError("database error", e);
                 sendJson(exchange, 500, "{\"error\":\"Database error\"}");
                 return;
             }
 
-            sendJson(exchange, 200, p.toJson());
+            sendProduct(exchange, 200, p);
         }
 
         private void handleUpdate(HttpExchange exchange, JsonObject json, int id) throws IOException {
@@ -223,31 +400,36 @@ public class ProductService {
 
                 validateOptionalNonBlank(exchange, description, "description");
                 validateOptionalNonNegativeDouble(exchange, price, "price");
+                requirePriceInRange(exchange, price);
                 validateOptionalNonNegativeInt(exchange, quantity, "quantity");
             } catch (IllegalArgumentException ignored) {
                 return;
             }
 
             try {
-                Product existing = DatabaseManager.getProduct(id);
-                if (existing == null) {
-                    sendJson(exchange, 404, "{\"error\":\"Product not found\"}");
-                    return;
+                Product existing;
+                boolean updated = false;
+                // the read-modify-write too, so concurrent partial updates do not overwrite each other
+                synchronized (writeLock(id)) {
+                    existing = DatabaseManager.getProductForUpdate(id);
+                    if (existing != null) {
+                        if (name != null) existing.name = name;
+                        if (description != null) existing.description = description; // guaranteed nonblank
+                        if (price != null) existing.price = price;
+                        if (quantity != null) existing.quantity = quantity;
+
+                        updated = DatabaseManager.updateProduct(existing);
+                        if (updated) recordChange("update", id, existing);
+                    }
                 }
-
-                if (name != null) existing.name = name;
-                if (description != null) existing.description = description; // guaranteed nonblank
-                if (price != null) existing.price = price;
-                if (quantity != null) existing.quantity = quantity;
-
-                boolean updated = DatabaseManager.updateProduct(existing);
                 if (!updated) {
                     sendJson(exchange, 404, "{\"error\":\"Product not found\"}");
                     return;
                 }
 
-                sendJson(exchange, 200, existing.toJson());
+                sendProduct(exchange, 200, existing);
             } catch (SQLException e) {
+                logError("database error", e);
                 sendJson(exchange, 500, "{\"error\":\"Database error\"}");
             }
         }
@@ -267,8 +449,11 @@ public class ProductService {
             }
 
             try {
-                DatabaseManager.DeleteResult res =
-                        DatabaseManager.deleteProduct(id, name, price, quantity);
+                DatabaseManager.DeleteResult res;
+                synchronized (writeLock(id)) {
+                    res = DatabaseManager.deleteProduct(id, name, price, quantity);
+                    if (res == DatabaseManager.DeleteResult.DELETED) recordChange("delete", id, null);
+                }
 
                 if (res == DatabaseManager.DeleteResult.NOT_FOUND) {
                     sendJson(exchange, 404, "{\"error\":\"Product not found\"}");
@@ -281,6 +466,7 @@ public class ProductService {
 
                 sendJson(exchange, 200, "{\"status\":\"deleted\"}");
             } catch (SQLException e) {
+                logError("database error", e);
                 sendJson(exchange, 500, "{\"error\":\"Database error\"}");
             }
         }
@@ -289,6 +475,28 @@ public class ProductService {
         private void handleGet(HttpExchange exchange) throws IOException {
             String path = exchange.getRequestURI().getPath();
 
+            if (path.equals("/product/changes")) {
+                setCommand("changes");
+                handleChanges(exchange);
+                return;
+            }
+
+            if (path.equals("/product/metrics")) {
+                setCommand("metrics");
+                sendJson(exchange, 200, "{\"read_coalescing\":" + DatabaseManager.coalescingStatsJson() +
+                        ",\"rate_limited\":" + LIMITER.rejected() +
+                        ",\"feed_subscribers\":" + CHANGES.subscriberCount() +
+                        ",\"feed_dropped\":" + CHANGES.droppedCount() +
+                        ",\"log_dropped\":" + Log.dropped() + "}");
+                return;
+            }
+
+            if (path.equals("/product/stats") || path.startsWith("/product/stats/")) {
+                setCommand("stats");
+                handleStats(exchange, path.substring("/product/stats".length()));
+                return;
+            }
+
             if (path.equals("/product") || path.equals("/product/")) {
                 sendJson(exchange, 400, "{\"error\":\"Missing product id\"}");
                 return;
@@ -318,21 +526,141 @@ public class ProductService {
                     sendJson(exchange, 404, "{\"error\":\"Product not found\"}");
                     return;
                 }
-                sendJson(exchange, 200, p.toJson());
+                sendProduct(exchange, 200, p);
+            } catch (SQLTimeoutException e) {
+                // includes giving up on another request's in-flight read of the same id
+                logError("database timeout", e);
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendJson(exchange, 503, "{\"error\":\"Database timeout\"}");
             } catch (SQLException e) {
+                logError("database error", e);
                 sendJson(exchange, 500, "{\"error\":\"Database error\"}");
             }
         }
 
-        private String readBody(HttpExchange exchange) throws IOException {
+        // -------- GET /product/changes?since=<seq> --------
+        private void handleChanges(HttpExchange exchange) throws IOException {
+            String since = queryParam(exchange, "since");
+            // EventSource reconnects send the last id they saw in this header
+            if (since == null) since = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+
+            Long sinceSeq = null;
+            if (since != null) {
+                try {
+                    sinceSeq = Long.parseLong(since.trim());
+                    if (sinceSeq < 0) throw new NumberFormatException();
+                } catch (NumberFormatException e) {
+                    sendJson(exchange, 400, "{\"error\":\"Invalid since\"}");
+                    return;
+                }
+            }
+            if (!CHANGES.subscribe(exchange, sinceSeq)) {
+                exchange.getResponseHeaders().set("Retry-After", "5");
+                sendJson(exchange, 503, "{\"error\":\"Too many feed subscribers\"}");
+            }
+        }
+
+        // -------- GET /product/stats[/low-stock|/price-histogram] --------
+        // Served from INVENTORY only; never queries the database
+        private void handleStats(HttpExchange exchange, String sub) throws IOException {
+            if (!INVENTORY.isLoaded()) {
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(INVENTORY_RETRY_SECONDS));
+                sendJson(exchange, 503, "{\"error\":\"Inventory snapshot not loaded yet\"}");
+                return;
+            }
+
+            Integer threshold = intParam(exchange, "threshold", 10);
+            Integer limit = intParam(exchange, "limit", 100);
+            Integer buckets = intParam(exchange, "buckets", 10);
+            if (threshold == null || limit == null || limit <= 0 || buckets == null || buckets <= 0 || buckets > 1000) {
+                sendJson(exchange, 400, "{\"error\":\"Invalid stats parameter\"}");
+                return;
+            }
+
+            switch (sub) {
+                case "":
+                case "/":
+                    sendJson(exchange, 200, INVENTORY.summaryJson(threshold));
+                    break;
+                case "/low-stock":
+                    sendJson(exchange, 200, INVENTORY.lowStockJson(threshold, limit));
+                    break;
+                case "/price-histogram":
+                    sendJson(exchange, 200, INVENTORY.priceHistogramJson(buckets));
+                    break;
+                default:
+                    sendJson(exchange, 404, "{\"error\":\"Not found\"}");
+            }
+        }
+
+        // Every successful write, under writeLock(id): feed subscribers and the stats snapshot
+        private void recordChange(String op, int id, Product p) {
+            if (p != null) INVENTORY.upsert(p);
+            else INVENTORY.remove(id);
+
+            JsonObject data = new JsonObject();
+            data.addProperty("op", op);
+            data.addProperty("id", id);
+            if (p != null) data.add("product", p.toJsonObject());
+            CHANGES.publish(op, data.toString());
+        }
+
+        private String readBody(byte[] raw) throws IOException {
             try (BufferedReader br = new BufferedReader(
-                    new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+                    new InputStreamReader(new ByteArrayInputStream(raw), StandardCharsets.UTF_8))) {
                 StringBuilder sb = new StringBuilder();
                 String line;
                 while ((line = br.readLine()) != null) sb.append(line);
                 return sb.toString();
             }
         }
+
+        private byte[] readBodyBytes(HttpExchange exchange) throws IOException {
+            try (InputStream in = exchange.getRequestBody()) {
+                return in.readAllBytes();
+            }
+        }
+    }
+
+    // ---------- Query string helpers ----------
+    private static String queryParam(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) return null;
+        for (String param : query.split("&")) {
+            if (param.startsWith(name + "=")) return param.substring(name.length() + 1);
+        }
+        return null;
+    }
+
+    // null if present but not an integer
+    private static Integer intParam(HttpExchange exchange, String name, int fallback) {
+        String v = queryParam(exchange, name);
+        if (v == null) return fallback;
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // ---------- Request context (for logging) ----------
+    // One per handler thread, reset by handle(): exchange attributes are stored in the
+    // shared HttpContext, so concurrent requests would overwrite each other's values
+    private static final class RequestContext {
+        long reqId;
+        String command; // null until known (bad body, 405, 429, ...)
+    }
+
+    private static final ThreadLocal<RequestContext> CONTEXT = ThreadLocal.withInitial(RequestContext::new);
+
+    private static void setCommand(String command) {
+        CONTEXT.get().command = command;
+        Profiling.command(command);
+    }
+
+    private static void logError(String message, Throwable t) {
+        RequestContext ctx = CONTEXT.get();
+        Log.error(ctx.reqId, ctx.command, message, t);
     }
 
     // ---------- HTTP response helper ----------
@@ -345,6 +673,29 @@ public class ProductService {
         }
     }
 
+    // JSON unless the client asked for the binary form
+    private static void sendProduct(HttpExchange exchange, int status, Product p) throws IOException {
+        if (!Binary.accepts(exchange)) {
+            sendJson(exchange, status, p.toJson());
+            return;
+        }
+        byte[] bytes = p.toBinary();
+        exchange.getResponseHeaders().set("Content-Type", Binary.MEDIA_TYPE);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static JsonObject parseBinaryObject(HttpExchange ex, byte[] body) throws IOException {
+        try {
+            return Binary.decodeRequest(body);
+        } catch (IOException e) {
+            sendJson(ex, 400, "{\"error\":\"Invalid binary body\"}");
+            throw new IllegalArgumentException("invalid binary body");
+        }
+    }
+
     // Parse once per request body
     private static JsonObject parseJsonObject(HttpExchange ex, String body) throws IOException {
         try {
@@ -0,0 +1,191 @@
+import com.sun.net.httpserver.HttpExchange;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-client token buckets, checked before a request body is read.
+ *
+ * A client is its X-API-Key header when that key is listed in RATE_LIMIT_API_KEYS
+ * (comma-separated), otherwise its remote address (or the first X-Forwarded-For hop
+ * when RATE_LIMIT_TRUST_FORWARDED=true, i.e. behind GatewayService). Unlisted keys
+ * are ignored, so inventing a new key per request does not buy a fresh bucket.
+ * Reads (GET) and writes (everything else) have separate buckets. Configuration,
+ * per client:
+ *   RATE_LIMIT_READ_PER_SEC / RATE_LIMIT_READ_BURST    (default 200 / 400)
+ *   RATE_LIMIT_WRITE_PER_SEC / RATE_LIMIT_WRITE_BURST  (default 50 / 100)
+ *   RATE_LIMIT_MAX_CLIENTS                             (default 100000)
+ *
+ * Clients idle long enough for their buckets to be full again are evicted. When the
+ * map is at capacity, unseen clients share one overflow bucket pair. Bursts are
+ * capped at 16777 tokens by the packed state.
+ */
+public class RateLimiter {
+
+    /**
+     * Lock-free bucket: refill time (ms since EPOCH, high 40 bits) and tokens in
+     * thousandths (low 24 bits) share one AtomicLong, so acquire is a single CAS.
+     */
+    static final class Bucket {
+        private static final long SCALE = 1000;
+        private static final int TOKEN_BITS = 24;
+        private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+        private final long ratePerSec;
+        private final long capacity; // scaled
+        private final AtomicLong state;
+
+        Bucket(long ratePerSec, long burst, long nowMs) {
+            this.ratePerSec = ratePerSec;
+            this.capacity = Math.min(burst * SCALE, TOKEN_MASK);
+            this.state = new AtomicLong(pack(nowMs, capacity));
+        }
+
+        private static long pack(long timeMs, long tokens) {
+            return (timeMs << TOKEN_BITS) | tokens;
+        }
+
+        /** @return 0 if a token was taken, otherwise milliseconds until one is available */
+        long tryAcquire(long nowMs) {
+            while (true) {
+                long s = state.get();
+                long last = s >>> TOKEN_BITS;
+                long tokens = s & TOKEN_MASK;
+
+                long elapsed = nowMs - last;
+                if (elapsed > 0) {
+                    long added = elapsed * ratePerSec; // scaled: ms * tokens/s * 1000/1000
+                    if (added > 0) {
+                        tokens = Math.min(capacity, tokens + added);
+                        last = nowMs;
+                    }
+                }
+
+                if (tokens < SCALE) {
+                    long missing = SCALE - tokens;
+                    return Math.max(1, (missing + ratePerSec - 1) / ratePerSec);
+                }
+                if (state.compareAndSet(s, pack(last, tokens - SCALE))) return 0;
+            }
+        }
+
+        boolean isFull(long nowMs) {
+            long s = state.get();
+            long tokens = (s & TOKEN_MASK) + (nowMs - (s >>> TOKEN_BITS)) * ratePerSec;
+            return tokens >= capacity;
+        }
+    }
+
+    static final class Client {
+        final Bucket reads;
+        final Bucket writes;
+
+        Client(Bucket reads, Bucket writes) {
+            this.reads = reads;
+            this.writes = writes;
+        }
+    }
+
+    // Monotonic: a wall-clock step back would stall refills, and a negative time would corrupt pack()
+    private static final long EPOCH = System.nanoTime();
+
+    private final long readRate;
+    private final long readBurst;
+    private final long writeRate;
+    private final long writeBurst;
+    private final int maxClients;
+    private final boolean trustForwarded = Boolean.parseBoolean(System.getenv().getOrDefault("RATE_LIMIT_TRUST_FORWARDED", "false"));
+    private final Set<String> apiKeys = splitKeys(System.getenv().getOrDefault("RATE_LIMIT_API_KEYS", ""));
+
+    private final ConcurrentHashMap<String, Client> clients = new ConcurrentHashMap<>();
+    private final Client overflow;
+    private final LongAdder rejected = new LongAdder();
+
+    public RateLimiter() {
+        this(envLong("RATE_LIMIT_READ_PER_SEC", 200), envLong("RATE_LIMIT_READ_BURST", 400),
+                envLong("RATE_LIMIT_WRITE_PER_SEC", 50), envLong("RATE_LIMIT_WRITE_BURST", 100),
+                (int) envLong("RATE_LIMIT_MAX_CLIENTS", 100_000));
+    }
+
+    // Explicit limits, for src/Tools/RateLimiterBench
+    RateLimiter(long readRate, long readBurst, long writeRate, long writeBurst, int maxClients) {
+        this.readRate = Math.max(1, readRate);
+        this.readBurst = Math.max(1, readBurst);
+        this.writeRate = Math.max(1, writeRate);
+        this.writeBurst = Math.max(1, writeBurst);
+        this.maxClients = maxClients;
+        overflow = newClient(now());
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rate-limit-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::evictIdle, 10, 10, TimeUnit.SECONDS);
+    }
+
+    private static long envLong(String key, long fallback) {
+        String v = System.getenv(key);
+        return (v == null || v.trim().isEmpty()) ? fallback : Long.parseLong(v.trim());
+    }
+
+    private static Set<String> splitKeys(String csv) {
+        Set<String> keys = new HashSet<>();
+        for (String k : csv.split(",")) {
+            if (!k.trim().isEmpty()) keys.add(k.trim());
+        }
+        return keys;
+    }
+
+    private static long now() {
+        return (System.nanoTime() - EPOCH) / 1_000_000;
+    }
+
+    private Client newClient(long nowMs) {
+        return new Client(new Bucket(readRate, readBurst, nowMs), new Bucket(writeRate, writeBurst, nowMs));
+    }
+
+    /** @return 0 if the request may proceed, otherwise milliseconds the client should wait */
+    public long acquire(HttpExchange exchange) {
+        return acquire(clientKey(exchange), "GET".equalsIgnoreCase(exchange.getRequestMethod()));
+    }
+
+    long acquire(String key, boolean read) {
+        long nowMs = now();
+        Client c = clients.get(key);
+        if (c == null) {
+            c = (clients.size() < maxClients) ? clients.computeIfAbsent(key, k -> newClient(nowMs)) : overflow;
+        }
+        long wait = (read ? c.reads : c.writes).tryAcquire(nowMs);
+        if (wait > 0) rejected.increment();
+        return wait;
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    private String clientKey(HttpExchange exchange) {
+        String apiKey = exchange.getRequestHeaders().getFirst("X-API-Key");
+        if (apiKey != null && apiKeys.contains(apiKey)) return "key:" + apiKey;
+        if (trustForwarded) {
+            String fwd = exchange.getRequestHeaders().getFirst("X-Forwarded-For");
+            if (fwd != null && !fwd.isEmpty()) {
+                int comma = fwd.indexOf(',');
+                return "ip:" + ((comma < 0) ? fwd : fwd.substring(0, comma)).trim();
+            }
+        }
+        return "ip:" + exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
+    // A client whose buckets have refilled is indistinguishable from a new one
+    private void evictIdle() {
+        long nowMs = now();
+        clients.values().removeIf(c -> c.reads.isFull(nowMs) && c.writes.isFull(nowMs));
+    }
+}
@@ -0,0 +1,242 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out JDBC connections for one logical database: writes always go to
+ * the primary, reads go to a replica when a healthy, caught-up one exists.
+ *
+ * Configuration (environment variables, all optional):
+ *   DB_URL                 primary JDBC url (defaults to the built-in one)
+ *   DB_USER, DB_PASSWORD   credentials for every url (default the built-in ones)
+ *   DB_REPLICA_URLS        comma-separated replica JDBC urls
+ *   DB_READ_ROUTING        "round-robin" (default) or "least-latency"
+ *   DB_MAX_REPLICA_LAG_MS  replicas lagging more than this are skipped (default 5000)
+ *   DB_HEALTH_INTERVAL_MS  how often replicas are probed (default 2000)
+ *   DB_PROBE_TIMEOUT_MS    connect/query timeout of one probe, and connect timeout of
+ *                          replica reads (default 2000)
+ *   DB_READ_TIMEOUT_MS     socket timeout of replica read connections (default 10000)
+ *
+ * A replica is not used until a probe has vouched for it. The probe reads
+ * pg_stat_wal_receiver; its status column is only visible to superusers and members
+ * of pg_read_all_stats. For other roles the router falls back to "a WAL receiver
+ * process exists" (logged once), and relies on the LSN comparison for staleness.
+ */
+public class ReplicaRouter {
+
+    public enum Mode { ROUND_ROBIN, LEAST_LATENCY }
+
+    private static final String PRIMARY_LSN_SQL = "SELECT pg_current_wal_lsn()::text";
+
+    // caught up with the primary's LSN taken just before, age of last replayed commit,
+    // WAL receiver running, its status (NULL without pg_read_all_stats)
+    private static final String LAG_SQL =
+            "SELECT pg_last_wal_replay_lsn() >= ?::pg_lsn, " +
+            "EXTRACT(EPOCH FROM (now() - pg_last_xact_replay_timestamp())) * 1000, " +
+            "EXISTS (SELECT 1 FROM pg_stat_wal_receiver), " +
+            "(SELECT status FROM pg_stat_wal_receiver LIMIT 1)";
+
+    private static final AtomicBoolean STATUS_HIDDEN_LOGGED = new AtomicBoolean();
+
+    static class Replica {
+        final String url;
+        // unusable until the first successful probe
+        volatile boolean healthy = false;
+        volatile long lagMs = Long.MAX_VALUE;
+        volatile long latencyNanos = 0; // smoothed probe round trip
+
+        Replica(String url) {
+            this.url = url;
+        }
+    }
+
+    private final String primaryUrl;
+    private final String user;
+    private final String password;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final Mode mode;
+    private final long maxLagMs;
+    private final int probeTimeoutSec = seconds(env("DB_PROBE_TIMEOUT_MS", "2000"));
+    private final int readTimeoutSec = seconds(env("DB_READ_TIMEOUT_MS", "10000"));
+    private final AtomicInteger next = new AtomicInteger();
+
+    public ReplicaRouter(String primaryUrl, List<String> replicaUrls, String user, String password,
+                         Mode mode, long maxLagMs, long healthIntervalMs) {
+        this.primaryUrl = primaryUrl;
+        this.user = user;
+        this.password = password;
+        this.mode = mode;
+        this.maxLagMs = maxLagMs;
+        for (String url : replicaUrls) {
+            replicas.add(new Replica(url));
+        }
+
+        if (!replicas.isEmpty()) {
+            ScheduledExecutorService probe = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "replica-probe");
+                t.setDaemon(true);
+                return t;
+            });
+            probe.scheduleWithFixedDelay(this::probeAll, 0, healthIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static ReplicaRouter fromEnvironment(String defaultUrl, String user, String password) {
+        return new ReplicaRouter(primaryUrlFromEnvironment(defaultUrl), splitUrls(env("DB_REPLICA_URLS", "")), user, password,
+                modeFromEnvironment(), maxLagFromEnvironment(), healthIntervalFromEnvironment());
+    }
+
+    static String primaryUrlFromEnvironment(String defaultUrl) {
+        return env("DB_URL", defaultUrl);
+    }
+
+    static Mode modeFromEnvironment() {
+        return "least-latency".equalsIgnoreCase(env("DB_READ_ROUTING", "round-robin"))
+                ? Mode.LEAST_LATENCY : Mode.ROUND_ROBIN;
+    }
+
+    static long maxLagFromEnvironment() {
+        return Long.parseLong(env("DB_MAX_REPLICA_LAG_MS", "5000"));
+    }
+
+    static long healthIntervalFromEnvironment() {
+        return Long.parseLong(env("DB_HEALTH_INTERVAL_MS", "2000"));
+    }
+
+    static List<String> splitUrls(String csv) {
+        List<String> urls = new ArrayList<>();
+        for (String s : csv.split(",")) {
+            if (!s.trim().isEmpty()) urls.add(s.trim());
+        }
+        return urls;
+    }
+
+    // pgjdbc timeouts are whole seconds
+    private static int seconds(String ms) {
+        return (int) Math.max(1, (Long.parseLong(ms) + 999) / 1000);
+    }
+
+    private static String env(String key, String fallback) {
+        String v = System.getenv(key);
+        return (v == null || v.trim().isEmpty()) ? fallback : v.trim();
+    }
+
+    public String primaryUrl() {
+        return primaryUrl;
+    }
+
+    // Writes, and reads that must observe our own writes
+    public Connection openPrimary() throws SQLException {
+        return DriverManager.getConnection(primaryUrl, user, password);
+    }
+
+    // Reads that tolerate replication lag; falls back to the primary
+    public Connection openRead() throws SQLException {
+        for (int attempt = 0; attempt < replicas.size(); attempt++) {
+            Replica r = pick();
+            if (r == null) break;
+            try {
+                return DriverManager.getConnection(r.url, boundedProperties(probeTimeoutSec, readTimeoutSec));
+            } catch (SQLException e) {
+                r.healthy = false; // probe will bring it back
+            }
+        }
+        return openPrimary();
+    }
+
+    private boolean usable(Replica r) {
+        return r.healthy && r.lagMs <= maxLagMs;
+    }
+
+    private Replica pick() {
+        int n = replicas.size();
+        if (n == 0) return null;
+
+        if (mode == Mode.LEAST_LATENCY) {
+            Replica best = null;
+            for (Replica r : replicas) {
+                if (usable(r) && (best == null || r.latencyNanos < best.latencyNanos)) best = r;
+            }
+            return best;
+        }
+
+        int start = Math.floorMod(next.getAndIncrement(), n);
+        for (int i = 0; i < n; i++) {
+            Replica r = replicas.get((start + i) % n);
+            if (usable(r)) return r;
+        }
+        return null;
+    }
+
+    /*
+     * Lag is measured against the primary, not against what the standby happens to have
+     * received: a standby whose WAL receiver dropped replays everything it got and then
+     * looks idle, so it is caught up only if it has replayed the primary's current LSN.
+     * One without a streaming receiver is not used at all.
+     */
+    private void probeAll() {
+        String primaryLsn = null;
+        try (Connection c = DriverManager.getConnection(primaryUrl, boundedProperties(probeTimeoutSec, probeTimeoutSec * 2));
+             Statement st = c.createStatement()) {
+            st.setQueryTimeout(probeTimeoutSec);
+            try (ResultSet rs = st.executeQuery(PRIMARY_LSN_SQL)) {
+                if (rs.next()) primaryLsn = rs.getString(1);
+            }
+        } catch (SQLException e) {
+            // primary unreachable: fall back to the age of the last replayed commit
+        }
+
+        for (Replica r : replicas) {
+            long t0 = System.nanoTime();
+            try (Connection c = DriverManager.getConnection(r.url, boundedProperties(probeTimeoutSec, probeTimeoutSec * 2));
+                 PreparedStatement ps = c.prepareStatement(LAG_SQL)) {
+                ps.setQueryTimeout(probeTimeoutSec);
+                ps.setString(1, primaryLsn);
+                try (ResultSet rs = ps.executeQuery()) {
+                    rs.next();
+                    long elapsed = System.nanoTime() - t0;
+                    boolean caughtUp = rs.getBoolean(1);
+                    double replayAgeMs = rs.getDouble(2);
+                    boolean knownAge = !rs.wasNull();
+                    boolean receiverRunning = rs.getBoolean(3);
+                    String status = rs.getString(4);
+                    boolean streaming;
+                    if (status != null || !receiverRunning) {
+                        streaming = "streaming".equals(status);
+                    } else {
+                        // a running receiver whose status we may not read
+                        streaming = true;
+                        if (STATUS_HIDDEN_LOGGED.compareAndSet(false, true)) {
+                            Log.info("replica-probe", "pg_stat_wal_receiver.status is hidden from role " + user
+                                    + " (needs pg_read_all_stats); treating a running WAL receiver as streaming");
+                        }
+                    }
+
+                    r.lagMs = caughtUp ? 0 : (knownAge ? (long) replayAgeMs : Long.MAX_VALUE);
+                    r.latencyNanos = (r.latencyNanos == 0) ? elapsed : (r.latencyNanos * 7 + elapsed) / 8;
+                    r.healthy = streaming;
+                }
+            } catch (SQLException e) {
+                r.healthy = false;
+            }
+        }
+    }
+
+    // Bounded, so a server that accepts TCP and then hangs cannot stall the probe thread
+    // or a request handler
+    private Properties boundedProperties(int connectSec, int socketSec) {
+        Properties props = new Properties();
+        props.setProperty("user", user);
+        props.setProperty("password", password);
+        props.setProperty("loginTimeout", String.valueOf(connectSec));
+        props.setProperty("connectTimeout", String.valueOf(connectSec));
+        props.setProperty("socketTimeout", String.valueOf(socketSec));
+        return props;
+    }
+}
@@ -0,0 +1,88 @@
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Online rebalancer for the product shards.
+ *
+ * Adding a shard:
+ *   1. restart ProductService with PRODUCT_SHARDS = new layout and
+ *      PRODUCT_SHARDS_PREVIOUS = old layout (reads fall back, writes move rows on touch)
+ *   2. run this tool with the same two variables set
+ *   3. once it reports 0 rows left (it re-scans the old shards to check), restart
+ *      without PRODUCT_SHARDS_PREVIOUS
+ *
+ * Each old shard is scanned in id order; every row whose owner changed is moved with
+ * DatabaseManager.moveProduct, one row at a time, so the service keeps serving reads
+ * the whole time. Safe to re-run after an interruption.
+ */
+public class ShardRebalancer {
+
+    private static final int BATCH = 500;
+
+    public static void main(String[] args) throws SQLException {
+        ConsistentHashRing<ReplicaRouter> target = DatabaseManager.shards();
+        ConsistentHashRing<ReplicaRouter> previous = DatabaseManager.previousShards();
+        if (previous == null) {
+            System.out.println("PRODUCT_SHARDS_PREVIOUS is not set; nothing to rebalance.");
+            return;
+        }
+
+        DatabaseManager.initialize(); // make sure new shards have the table
+
+        long moved = 0;
+        for (ReplicaRouter source : previous.nodes()) {
+            int lastId = Integer.MIN_VALUE;
+            while (true) {
+                List<Integer> ids = nextIds(source, lastId);
+                if (ids.isEmpty()) break;
+                lastId = ids.get(ids.size() - 1);
+
+                for (int id : ids) {
+                    ReplicaRouter owner = target.nodeFor(id);
+                    if (DatabaseManager.sameShard(owner, source)) continue;
+                    if (DatabaseManager.moveProduct(source, owner, id)) moved++;
+                }
+                System.out.println("Rebalance: " + source.primaryUrl() + " scanned up to id " + lastId
+                        + ", " + moved + " rows moved");
+            }
+        }
+
+        // rows written to an old shard by a process still on the old layout are not moved yet
+        long left = misplaced(target, previous);
+        System.out.println("Rebalance finished: " + moved + " rows moved, " + left + " rows left"
+                + ((left == 0) ? "." : "; run it again."));
+    }
+
+    // Rows still on an old shard that the new layout assigns elsewhere
+    private static long misplaced(ConsistentHashRing<ReplicaRouter> target,
+                                  ConsistentHashRing<ReplicaRouter> previous) throws SQLException {
+        long left = 0;
+        for (ReplicaRouter source : previous.nodes()) {
+            int lastId = Integer.MIN_VALUE;
+            while (true) {
+                List<Integer> ids = nextIds(source, lastId);
+                if (ids.isEmpty()) break;
+                lastId = ids.get(ids.size() - 1);
+                for (int id : ids) {
+                    if (!DatabaseManager.sameShard(target.nodeFor(id), source)) left++;
+                }
+            }
+        }
+        return left;
+    }
+
+    // Keyset pagination on the primary; a lagging replica could still list rows already moved
+    private static List<Integer> nextIds(ReplicaRouter shard, int afterId) throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+        try (Connection c = shard.openPrimary();
+             PreparedStatement ps = c.prepareStatement(
+                     "SELECT id FROM products WHERE id > ? ORDER BY id LIMIT " + BATCH)) {
+            ps.setInt(1, afterId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) ids.add(rs.getInt(1));
+            }
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,107 @@
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Offline summary of a dump taken from /admin/jfr/dump on either service.
+ *
+ * Compile: javac JfrSummary.java
+ * Run:     java JfrSummary product-1700000000000.jfr [more.jfr ...]
+ *
+ * Prints, per service and command, request count, 5xx count, latency percentiles
+ * and where the average request spent its time (parse / hash / db / other), then
+ * per-operation latency and average rows returned/affected of the csc301.Db events.
+ */
+public class JfrSummary {
+
+    static class Stats {
+        final List<Long> durations = new ArrayList<>();
+        long errors, parse, hash, db, dbCalls, bodyBytes, rows;
+
+        long percentile(double p) {
+            if (durations.isEmpty()) return 0;
+            int i = (int) Math.ceil(p * durations.size()) - 1;
+            return durations.get(Math.max(0, Math.min(durations.size() - 1, i)));
+        }
+
+        long total() {
+            long t = 0;
+            for (long d : durations) t += d;
+            return t;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("usage: java JfrSummary <dump.jfr> [more.jfr ...]");
+            return;
+        }
+
+        Map<String, Stats> requests = new TreeMap<>();
+        Map<String, Stats> dbCalls = new TreeMap<>();
+
+        for (String arg : args) {
+            Path path = Paths.get(arg);
+            for (RecordedEvent e : RecordingFile.readAllEvents(path)) {
+                String type = e.getEventType().getName();
+                if ("csc301.Request".equals(type)) {
+                    // no command: rejected before one was known (429, 405, unparseable body)
+                    String command = (e.getString("command") == null) ? "(none)" : e.getString("command");
+                    Stats s = requests.computeIfAbsent(e.getString("service") + " " + command, k -> new Stats());
+                    s.durations.add(e.getDuration().toNanos());
+                    if (e.getInt("status") >= 500) s.errors++;
+                    s.parse += e.getLong("parseNanos");
+                    s.hash += e.getLong("hashNanos");
+                    s.db += e.getLong("dbNanos");
+                    s.dbCalls += e.getInt("dbCalls");
+                    s.bodyBytes += e.getLong("bodyBytes");
+                } else if ("csc301.Db".equals(type)) {
+                    Stats s = dbCalls.computeIfAbsent(
+                            e.getString("service") + " " + e.getString("operation") + " (" + e.getString("sql") + ")",
+                            k -> new Stats());
+                    s.durations.add(e.getDuration().toNanos());
+                    s.rows += e.getInt("rows");
+                }
+            }
+        }
+
+        System.out.println("== Requests (times in ms) ==");
+        System.out.printf("%-28s %8s %6s %9s %9s %9s %9s | %8s %8s %8s %8s %7s %9s%n",
+                "service command", "count", "5xx", "p50", "p95", "p99", "max",
+                "avgParse", "avgHash", "avgDb", "avgOther", "dbCalls", "avgBytes");
+        for (Map.Entry<String, Stats> en : requests.entrySet()) {
+            Stats s = en.getValue();
+            Collections.sort(s.durations);
+            int n = s.durations.size();
+            long other = s.total() - s.parse - s.hash - s.db;
+            System.out.printf("%-28s %8d %6d %9.3f %9.3f %9.3f %9.3f | %8.3f %8.3f %8.3f %8.3f %7.2f %9d%n",
+                    en.getKey(), n, s.errors,
+                    ms(s.percentile(0.50)), ms(s.percentile(0.95)), ms(s.percentile(0.99)), ms(s.percentile(1.0)),
+                    ms(s.parse / n), ms(s.hash / n), ms(s.db / n), ms(Math.max(0, other) / n),
+                    (double) s.dbCalls / n, s.bodyBytes / n);
+        }
+
+        System.out.println();
+        System.out.println("== Database calls (times in ms) ==");
+        System.out.printf("%-44s %8s %9s %9s %9s %9s %8s%n", "service operation (sql)", "count", "p50", "p95", "p99", "max", "avgRows");
+        for (Map.Entry<String, Stats> en : dbCalls.entrySet()) {
+            Stats s = en.getValue();
+            Collections.sort(s.durations);
+            System.out.printf("%-44s %8d %9.3f %9.3f %9.3f %9.3f %8.2f%n", en.getKey(), s.durations.size(),
+                    ms(s.percentile(0.50)), ms(s.percentile(0.95)), ms(s.percentile(0.99)), ms(s.percentile(1.0)),
+                    (double) s.rows / s.durations.size());
+        }
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the per-request cost of RateLimiter: client map lookup plus the
+ * bucket CAS, the work done in handle() before a request body is read.
+ *
+ * Compile: javac -d out ../ProductService/RateLimiter.java RateLimiterBench.java
+ * Run:     java -cp out RateLimiterBench [clients] [threads] [opsPerThread]
+ *          (defaults 1000, all cores, 5000000)
+ *
+ * Three runs, each repeated so the JIT has settled by the last:
+ *   spread    every thread cycles through all clients (the normal case)
+ *   hot       every thread hits one client (worst-case CAS contention)
+ *   limited   real default limits, so most calls take the rejection path
+ */
+public class RateLimiterBench {
+
+    private static final int ROUNDS = 5;
+
+    private interface Op {
+        long run(int thread, long i);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        long ops = (args.length > 2) ? Long.parseLong(args[2]) : 5_000_000L;
+
+        String[] keys = new String[clients];
+        for (int i = 0; i < clients; i++) keys[i] = "ip:10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255);
+
+        // limits high enough that nothing is rejected: measures the allow path
+        RateLimiter open = new RateLimiter(1_000_000, 16_000, 1_000_000, 16_000, clients + 1);
+        RateLimiter defaults = new RateLimiter(200, 400, 50, 100, clients + 1);
+
+        System.out.println("clients=" + clients + " threads=" + threads + " ops/thread=" + ops);
+        run("spread", threads, ops, (t, i) -> open.acquire(keys[(int) ((i * 7 + t) % clients)], true));
+        run("hot", threads, ops, (t, i) -> open.acquire(keys[0], true));
+        run("limited", threads, ops, (t, i) -> defaults.acquire(keys[(int) ((i * 7 + t) % clients)], (i & 3) != 0));
+        System.out.println("rejected (limited run): " + defaults.rejected());
+    }
+
+    private static void run(String name, int threads, long ops, Op op) throws InterruptedException {
+        for (int round = 1; round <= ROUNDS; round++) {
+            CountDownLatch start = new CountDownLatch(1);
+            Thread[] workers = new Thread[threads];
+            long[] sinks = new long[threads];
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                workers[t] = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long sink = 0;
+                    for (long i = 0; i < ops; i++) sink += op.run(thread, i);
+                    sinks[thread] = sink; // keeps the loop from being optimized away
+                });
+                workers[t].start();
+            }
+
+            long t0 = System.nanoTime();
+            start.countDown();
+            for (Thread w : workers) w.join();
+            double nsPerOp = (System.nanoTime() - t0) / (double) ops;
+
+            System.out.printf("%-8s round %d: %7.1f ns/op per thread, %7.2f M ops/s total%n",
+                    name, round, nsPerOp, threads * 1000.0 / nsPerOp);
+        }
+    }
+}
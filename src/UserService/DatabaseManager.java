@@ -4,12 +4,23 @@ import java.util.List;
 
 public class DatabaseManager {
     private static final String DB_URL = "jdbc:postgresql://db.qvmekyovznxapjzhyudt.supabase.co:5432/postgres?sslmode=require";
-    private static final String DB_USER = "postgres"; 
-    private static final String DB_PASSWORD = "HmNUB18zTR4Fjjqc";
+    private static final String DB_USER = System.getenv().getOrDefault("DB_USER", "postgres");
+    private static final String DB_PASSWORD = System.getenv().getOrDefault("DB_PASSWORD", "HmNUB18zTR4Fjjqc");
+
+    // Primary for writes, replicas (if configured) for plain reads
+    private static final ReplicaRouter ROUTER = ReplicaRouter.fromEnvironment(DB_URL, DB_USER, DB_PASSWORD);
+
+    // Concurrent getUser calls for one id share a query; writes forget() the id
+    private static final SingleFlight<Integer, UserData> USER_READS = new SingleFlight<>(
+            Long.parseLong(System.getenv().getOrDefault("COALESCE_TIMEOUT_MS", "5000")));
 
     // --- Singleton Connection ---
     public static Connection connect() throws SQLException {
-        return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+        return ROUTER.openPrimary();
+    }
+
+    public static Connection connectRead() throws SQLException {
+        return ROUTER.openRead();
     }
 
     // --- Initialization ---
@@ -21,9 +32,9 @@ public class DatabaseManager {
                      "password TEXT)";
         try (Connection conn = connect(); Statement stmt = conn.createStatement()) {
             stmt.execute(sql);
-            System.out.println("Database initialized (connected to Postgres).");
+            Log.info("startup", "Database initialized (connected to Postgres).");
         } catch (SQLException e) {
-            e.printStackTrace();
+            Log.error("database initialization failed", e);
         }
     }
 
@@ -31,37 +42,65 @@ public class DatabaseManager {
 
     public static void createUser(int id, String username, String email, String password) throws SQLException {
         String sql = "INSERT INTO users(id, username, email, password) VALUES(?,?,?,?)";
-        try (Connection conn = connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (Profiling.DbSpan span = Profiling.db("createUser", "INSERT");
+             Connection conn = connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, id);
             pstmt.setString(2, username);
             pstmt.setString(3, email);
             pstmt.setString(4, password);
-            pstmt.executeUpdate();
+            span.rows(pstmt.executeUpdate());
+            USER_READS.forget(id);
         }
     }
 
     public static void updateUser(int id, String username, String email, String password) throws SQLException {
         String sql = "UPDATE users SET username = ?, email = ?, password = ? WHERE id = ?";
-        try (Connection conn = connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (Profiling.DbSpan span = Profiling.db("updateUser", "UPDATE");
+             Connection conn = connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, username);
             pstmt.setString(2, email);
             pstmt.setString(3, password);
             pstmt.setInt(4, id);
-            pstmt.executeUpdate();
+            span.rows(pstmt.executeUpdate());
+            USER_READS.forget(id);
         }
     }
 
-    public static void deleteUser(int id) throws SQLException {
+    // returns false if no such user
+    public static boolean deleteUser(int id) throws SQLException {
         String sql = "DELETE FROM users WHERE id = ?";
-        try (Connection conn = connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (Profiling.DbSpan span = Profiling.db("deleteUser", "DELETE");
+             Connection conn = connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, id);
-            pstmt.executeUpdate();
+            int affected = pstmt.executeUpdate();
+            span.rows(affected);
+            boolean deleted = affected > 0;
+            USER_READS.forget(id);
+            return deleted;
+        }
+    }
+
+    // null only if there is no such user; a failed or timed-out read throws
+    public static UserData getUser(int id) throws SQLException {
+        try (Profiling.DbSpan span = Profiling.db("getUser", "SELECT")) {
+            return span.row(USER_READS.get(id, () -> loadUser(id, false)));
         }
     }
 
-    public static UserData getUser(int id) {
+    // Pre-checks for update/delete/login read from the primary so they never see a lagging replica
+    public static UserData getUserForUpdate(int id) throws SQLException {
+        try (Profiling.DbSpan span = Profiling.db("getUserForUpdate", "SELECT")) {
+            return span.row(loadUser(id, true));
+        }
+    }
+
+    public static String coalescingStatsJson() {
+        return USER_READS.statsJson();
+    }
+
+    private static UserData loadUser(int id, boolean fromPrimary) throws SQLException {
         String sql = "SELECT * FROM users WHERE id = ?";
-        try (Connection conn = connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (Connection conn = fromPrimary ? connect() : connectRead(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, id);
             ResultSet rs = pstmt.executeQuery();
             if (rs.next()) {
@@ -72,8 +111,6 @@ public class DatabaseManager {
                 user.password = rs.getString("password"); // In production, never return passwords!
                 return user;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
         return null; // User not found
     }
@@ -0,0 +1,241 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Always-on Flight Recorder profiling.
+ *
+ * Every request emits one csc301.Request event (command, status, body size, and the
+ * time spent parsing, hashing and in the database) and every DatabaseManager call a
+ * csc301.Db event. A continuous recording keeps the last JFR_MAX_AGE_MINUTES
+ * (default 30) on disk, and an admin listener on 127.0.0.1:<JFR_ADMIN_PORT> dumps
+ * part of it on demand:
+ *
+ *   POST /admin/jfr/dump?minutes=N   ->  {"file": "...", "bytes": ...}
+ *
+ * Summarize a dump with src/Tools/JfrSummary.
+ */
+public final class Profiling {
+
+    @Name("csc301.Request")
+    @Label("Request")
+    @Category("csc301")
+    @StackTrace(false)
+    static class RequestEvent extends Event {
+        @Label("Service") String service;
+        @Label("Command") String command;
+        @Label("Status") int status;
+        @Label("Body Size") @DataAmount long bodyBytes;
+        @Label("Parse Time") @Timespan long parseNanos;
+        @Label("Hash Time") @Timespan long hashNanos;
+        @Label("DB Time") @Timespan long dbNanos;
+        @Label("DB Calls") int dbCalls;
+    }
+
+    @Name("csc301.Db")
+    @Label("Database Call")
+    @Category("csc301")
+    @StackTrace(false)
+    static class DbEvent extends Event {
+        @Label("Service") String service;
+        @Label("Operation") String operation; // DatabaseManager method
+        @Label("SQL") String sql;             // SELECT / INSERT / UPDATE / DELETE
+        @Label("Rows") int rows;              // returned or affected
+    }
+
+    /** Closes a csc301.Db span and charges its time to the current request. */
+    public static final class DbSpan implements AutoCloseable {
+        private final DbEvent event;
+        private final long start = System.nanoTime();
+
+        private DbSpan(DbEvent event) {
+            this.event = event;
+        }
+
+        public void rows(int n) {
+            event.rows = n;
+        }
+
+        // Single-row lookups: records 0 or 1 row and passes the result through
+        public <T> T row(T result) {
+            event.rows = (result == null) ? 0 : 1;
+            return result;
+        }
+
+        @Override
+        public void close() {
+            long elapsed = System.nanoTime() - start;
+            event.commit();
+            RequestEvent r = CURRENT.get();
+            if (r != null) {
+                r.dbNanos += elapsed;
+                r.dbCalls++;
+            }
+        }
+    }
+
+    private static final ThreadLocal<RequestEvent> CURRENT = new ThreadLocal<>();
+    private static volatile String service = "service";
+    private static volatile Recording recording;
+
+    private Profiling() {
+    }
+
+    // ---------- Per-request events ----------
+
+    public static void beginRequest() {
+        RequestEvent e = new RequestEvent();
+        e.begin();
+        CURRENT.set(e);
+    }
+
+    // Set once the handler knows it; requests that never get one are recorded without
+    public static void command(String command) {
+        RequestEvent e = CURRENT.get();
+        if (e != null) e.command = command;
+    }
+
+    public static void endRequest(int status) {
+        RequestEvent e = CURRENT.get();
+        if (e == null) return;
+        CURRENT.remove();
+        e.end();
+        if (e.shouldCommit()) {
+            e.service = service;
+            e.status = status;
+            e.commit();
+        }
+    }
+
+    // Bytes as received, before any decoding
+    public static void bodySize(long bytes) {
+        RequestEvent e = CURRENT.get();
+        if (e != null) e.bodyBytes = bytes;
+    }
+
+    public static void parseTime(long nanos) {
+        RequestEvent e = CURRENT.get();
+        if (e != null) e.parseNanos += nanos;
+    }
+
+    public static void hashTime(long nanos) {
+        RequestEvent e = CURRENT.get();
+        if (e != null) e.hashNanos += nanos;
+    }
+
+    public static DbSpan db(String operation, String sql) {
+        DbEvent e = new DbEvent();
+        e.service = service;
+        e.operation = operation;
+        e.sql = sql;
+        e.begin();
+        return new DbSpan(e);
+    }
+
+    // ---------- Continuous recording + admin dump ----------
+
+    public static synchronized void start(String serviceName, int defaultAdminPort) {
+        if (recording != null) return;
+        service = serviceName;
+        try {
+            Recording r = new Recording(Configuration.getConfiguration("default"));
+            r.setName(serviceName + "-continuous");
+            r.setToDisk(true);
+            r.setMaxAge(Duration.ofMinutes(Long.parseLong(System.getenv().getOrDefault("JFR_MAX_AGE_MINUTES", "30"))));
+            r.enable(RequestEvent.class);
+            r.enable(DbEvent.class);
+            r.start();
+            recording = r;
+
+            int port = Integer.parseInt(System.getenv().getOrDefault("JFR_ADMIN_PORT", String.valueOf(defaultAdminPort)));
+            HttpServer admin = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            admin.createContext("/admin/jfr/dump", Profiling::handleDump);
+            admin.start(); // default executor: one thread, dumps are rare
+            Log.info("startup", "JFR recording started, admin on 127.0.0.1:" + port);
+        } catch (IOException | ParseException | RuntimeException e) {
+            // profiling is optional; the service runs without it
+            Log.error("JFR profiling unavailable", e);
+        }
+    }
+
+    private static void handleDump(HttpExchange exchange) throws IOException {
+        int status;
+        String body;
+        if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            status = 405;
+            body = "{\"error\":\"Use POST\"}";
+        } else {
+            long minutes = 5;
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query != null && query.startsWith("minutes=")) {
+                try {
+                    minutes = Long.parseLong(query.substring("minutes=".length()));
+                } catch (NumberFormatException ignored) {
+                    minutes = -1;
+                }
+            }
+            if (minutes <= 0) {
+                status = 400;
+                body = "{\"error\":\"minutes must be a positive integer\"}";
+            } else {
+                try {
+                    File f = dump(Duration.ofMinutes(minutes));
+                    status = 200;
+                    body = "{\"file\":\"" + f.getAbsolutePath().replace("\\", "\\\\") + "\",\"bytes\":" + f.length() + "}";
+                } catch (IOException | IllegalStateException e) {
+                    Log.error("JFR dump failed", e);
+                    status = 500;
+                    body = "{\"error\":\"Dump failed\"}";
+                }
+            }
+        }
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    // A running recording cannot be streamed, so dump from a stopped copy of it
+    static File dump(Duration window) throws IOException {
+        Recording live = recording;
+        if (live == null) throw new IllegalStateException("recording not started");
+
+        File dir = new File(System.getenv().getOrDefault("JFR_DUMP_DIR", "jfr"));
+        dir.mkdirs();
+        Instant end = Instant.now();
+        File out = new File(dir, service + "-" + end.toEpochMilli() + ".jfr");
+
+        Recording snapshot = live.copy(true);
+        try (InputStream in = snapshot.getStream(end.minus(window), end)) {
+            if (in == null) throw new IOException("no data in the requested window");
+            Files.copy(in, out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            snapshot.close();
+        }
+        return out;
+    }
+}
@@ -0,0 +1,158 @@
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compact HMAC-SHA256 session tokens, so an authenticated command can be checked
+ * in memory instead of re-reading the user row and re-hashing the password.
+ *
+ * Token: "<kid>.<userId>.<issuedAtMillis>.<expiresAtMillis>.<base64url signature>"
+ *
+ * Keys are random per process and rotated every TOKEN_ROTATION_MS (default 6h);
+ * a retired key still verifies until every token it signed has expired. Tokens
+ * issued to a user before revoke(userId) (account deleted, password changed) are
+ * rejected; those entries are forgotten once such tokens would have expired anyway.
+ * A token's issue time must be taken before the credentials it is issued for are
+ * read, so a login that read a password about to be changed always predates the
+ * revoke() that follows the change. Restarting the service invalidates all tokens.
+ */
+public class SessionTokens {
+
+    private static final long TTL_MS = Long.parseLong(System.getenv().getOrDefault("TOKEN_TTL_MS", "3600000"));
+    private static final long ROTATION_MS = Long.parseLong(System.getenv().getOrDefault("TOKEN_ROTATION_MS", "21600000"));
+
+    private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder B64D = Base64.getUrlDecoder();
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final class Key {
+        final SecretKeySpec spec;
+        volatile long retiredAt = Long.MAX_VALUE;
+
+        Key(byte[] secret) {
+            this.spec = new SecretKeySpec(secret, "HmacSHA256");
+        }
+    }
+
+    private static final Map<Integer, Key> KEYS = new ConcurrentHashMap<>();
+    private static volatile int currentKid = 0;
+
+    // userId -> time of the last revocation; tokens issued at or before it are dead
+    private static final Map<Integer, Long> REVOKED = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance("HmacSHA256");
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    static {
+        rotate();
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "token-keys");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(SessionTokens::rotate, ROTATION_MS, ROTATION_MS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(SessionTokens::prune, 1, 1, TimeUnit.MINUTES);
+    }
+
+    private SessionTokens() {
+    }
+
+    public static long ttlMillis() {
+        return TTL_MS;
+    }
+
+    // ---------- Keys ----------
+
+    public static synchronized void rotate() {
+        byte[] secret = new byte[32];
+        RANDOM.nextBytes(secret);
+        int kid = currentKid + 1;
+        KEYS.put(kid, new Key(secret));
+        Key previous = KEYS.get(currentKid);
+        currentKid = kid;
+        if (previous != null) previous.retiredAt = System.currentTimeMillis();
+    }
+
+    private static void prune() {
+        long now = System.currentTimeMillis();
+        KEYS.values().removeIf(k -> now - k.retiredAt > TTL_MS);
+        REVOKED.values().removeIf(revokedAt -> now - revokedAt > TTL_MS);
+    }
+
+    // ---------- Tokens ----------
+
+    /** Issue time for a token; take it before reading the credentials being checked. */
+    public static long now() {
+        return System.currentTimeMillis();
+    }
+
+    public static String issue(int userId, long issuedAt) {
+        int kid = currentKid;
+        String payload = kid + "." + userId + "." + issuedAt + "." + (issuedAt + TTL_MS);
+        return payload + "." + B64.encodeToString(sign(KEYS.get(kid), payload));
+    }
+
+    /** @return the user id the token was issued to, or -1 if it is malformed, forged, expired or revoked */
+    public static int verify(String token) {
+        if (token == null) return -1;
+        int sigDot = token.lastIndexOf('.');
+        if (sigDot < 0) return -1;
+        String payload = token.substring(0, sigDot);
+        String[] parts = payload.split("\\.");
+        if (parts.length != 4) return -1;
+
+        try {
+            int kid = Integer.parseInt(parts[0]);
+            int userId = Integer.parseInt(parts[1]);
+            long issuedAt = Long.parseLong(parts[2]);
+            long expiresAt = Long.parseLong(parts[3]);
+
+            Key key = KEYS.get(kid);
+            if (key == null) return -1;
+            byte[] expected = sign(key, payload);
+            byte[] actual = B64D.decode(token.substring(sigDot + 1));
+            if (!MessageDigest.isEqual(expected, actual)) return -1;
+
+            if (System.currentTimeMillis() >= expiresAt) return -1;
+            Long revokedAt = REVOKED.get(userId);
+            if (revokedAt != null && issuedAt <= revokedAt) return -1;
+            return userId;
+        } catch (IllegalArgumentException e) { // bad number or bad base64
+            return -1;
+        }
+    }
+
+    public static void revoke(int userId) {
+        REVOKED.put(userId, System.currentTimeMillis());
+    }
+
+    // "Bearer <token>" from the Authorization header, or null
+    public static String fromHeader(String authorization) {
+        if (authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) return null;
+        return authorization.substring(7).trim();
+    }
+
+    private static byte[] sign(Key key, String payload) {
+        try {
+            Mac mac = MAC.get();
+            mac.init(key.spec);
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
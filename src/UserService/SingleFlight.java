@@ -0,0 +1,89 @@
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent reads of the same key: the first caller (the leader) runs
+ * the query, callers arriving while it is in flight wait for that result, error
+ * included. Nothing is cached; the entry goes away as soon as the query finishes.
+ *
+ * Writers must call forget(key) after their change is committed and before they
+ * respond. Any read starting after that runs its own query, so a read issued after
+ * a completed write never gets a result loaded before it.
+ *
+ * Results are shared between callers and must not be mutated.
+ */
+public class SingleFlight<K, V> {
+
+    public interface Loader<V> {
+        V load() throws SQLException;
+    }
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final long timeoutMs;
+
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder followers = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    public SingleFlight(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    public V get(K key, Loader<V> loader) throws SQLException {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, mine);
+
+        if (existing == null) {
+            leaders.increment();
+            try {
+                V v = loader.load();
+                mine.complete(v);
+                return v;
+            } catch (SQLException | RuntimeException e) {
+                errors.increment();
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, mine);
+            }
+        }
+
+        followers.increment();
+        try {
+            return existing.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            timeouts.increment();
+            throw new SQLTimeoutException("Timed out waiting for in-flight read of " + key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for in-flight read of " + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new SQLException("In-flight read of " + key + " failed", cause);
+        }
+    }
+
+    // After a committed write to key: later reads must not join a query that may predate it
+    public void forget(K key) {
+        inFlight.remove(key);
+    }
+
+    public String statsJson() {
+        long l = leaders.sum();
+        long f = followers.sum();
+        return "{\"queries\":" + l +
+                ",\"coalesced\":" + f +
+                ",\"coalescing_ratio\":" + ((l + f == 0) ? 0.0 : (double) f / (l + f)) +
+                ",\"errors\":" + errors.sum() +
+                ",\"timeouts\":" + timeouts.sum() + "}";
+    }
+}
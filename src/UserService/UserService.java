@@ -5,7 +5,13 @@ import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
@@ -17,14 +23,20 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.nio.charset.StandardCharsets;
 
 public class UserService {
 
+    // Checked before anything else in UserHandler
+    static final RateLimiter LIMITER = new RateLimiter();
+
     public static void main(String[] args) throws IOException {
         // 1. Initialize DB before server starts
+        Log.start("user");
+        Profiling.start("user", 9081);
         DatabaseManager.initialize();
 
         int port = 8081;
@@ -34,6 +46,7 @@ public class UserService {
         server.createContext("/user", new UserHandler());
 
         server.start();
+        Log.info("startup", "Server started on port " + port);
         System.out.println("Server started on port " + port);
     }
 
@@ -41,23 +54,60 @@ public class UserService {
     static class UserHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            Profiling.beginRequest();
+            RequestContext ctx = CONTEXT.get();
+            ctx.reqId = Log.nextRequestId();
+            ctx.command = null;
             String method = exchange.getRequestMethod().toUpperCase();
             
-            if ("POST".equals(method)) {
-                handlePost(exchange);
-            } else if ("GET".equals(method)) {
-                handleGet(exchange);
-            } else {
-                sendResponse(exchange, 405, "{}"); // method not allowed
+            try {
+                // before the body is read, so a flooding client costs as little as possible
+                long waitMs = LIMITER.acquire(exchange);
+                if (waitMs > 0) {
+                    exchange.getResponseHeaders().set("Retry-After", String.valueOf((waitMs + 999) / 1000));
+                    sendResponse(exchange, 429, "{}"); // too many requests
+                    return;
+                }
+
+                if ("POST".equals(method)) {
+                    handlePost(exchange);
+                } else if ("GET".equals(method)) {
+                    setCommand("get");
+                    handleGet(exchange);
+                } else {
+                    sendResponse(exchange, 405, "{}"); // method not allowed
+                }
+            } finally {
+                Log.request(ctx.reqId, method, ctx.command, exchange.getResponseCode(), start);
+                Profiling.endRequest(exchange.getResponseCode());
             }
         }
         
         private void handlePost(HttpExchange exchange) throws IOException {
             try {
-                // Read and Parse JSON
-                String body = getRequestBody(exchange);
+                // Read and Parse JSON (or the binary form, see Binary)
                 Gson gson = new Gson();
-                UserData user = gson.fromJson(body, UserData.class);
+                UserData user;
+                long parseStart;
+                if (Binary.isBinaryBody(exchange)) {
+                    byte[] raw = getRequestBytes(exchange);
+                    Profiling.bodySize(raw.length);
+                    parseStart = System.nanoTime();
+                    try {
+                        user = Binary.decodeRequest(raw);
+                    } catch (IOException e) {
+                        sendResponse(exchange, 400, "{}"); // malformed binary body
+                        return;
+                    }
+                } else {
+                    byte[] raw = getRequestBytes(exchange);
+                    Profiling.bodySize(raw.length);
+                    String body = getRequestBody(raw);
+                    parseStart = System.nanoTime();
+                    user = gson.fromJson(body, UserData.class);
+                }
+                Profiling.parseTime(System.nanoTime() - parseStart);
                 if (user == null) {
                         sendResponse(exchange, 400, "{}"); // empty request body
                         return;
@@ -66,6 +116,8 @@ public class UserService {
                     sendResponse(exchange, 400, "{}"); // command required
                     return;
                 }
+                setCommand(user.command.toLowerCase());
+
                 // Execute Logic based on Command
                 switch (user.command.toLowerCase()) {
                     case "create":
@@ -93,8 +145,7 @@ public class UserService {
                         DatabaseManager.createUser(user.id, user.username, user.email, user.password);
                         // CHANGE: Return the user object as JSON instead of a text string
                         user.command = null;
-                        String jsonResponse = gson.toJson(user); 
-                        sendResponse(exchange, 200, jsonResponse);
+                        sendUser(exchange, 200, user, gson);
                         break;
                         
                     case "update":
@@ -104,7 +155,7 @@ public class UserService {
                         }
 
                         // 1. Fetch the CURRENT database state
-                        UserData existingUser = DatabaseManager.getUser(user.id);
+                        UserData existingUser = DatabaseManager.getUserForUpdate(user.id);
                         if (existingUser == null) {
                             sendResponse(exchange, 404, "{}"); // user id not found
                             return;
@@ -144,16 +195,57 @@ public class UserService {
                         // 5. Save to Database
                         // Note: ensure DatabaseManager.updateUser is updated to accept 4 arguments
                         DatabaseManager.updateUser(existingUser.id, existingUser.username, existingUser.email, existingUser.password);
+                        if (user.password != null) {
+                            SessionTokens.revoke(existingUser.id); // old sessions die with the old password
+                        }
 
                         // 6. Return the MERGED object so the client sees the full updated state
-                        sendResponse(exchange, 200, gson.toJson(existingUser));
+                        sendUser(exchange, 200, existingUser, gson);
                         break;
                         
+                    case "login":
+                        if (user.id == 0 || user.password == null) {
+                            sendResponse(exchange, 400, "{}"); // id and password required
+                            return;
+                        }
+                        // before the read: if the password changes after it, the revoke is later
+                        long issuedAt = SessionTokens.now();
+                        UserData account = DatabaseManager.getUserForUpdate(user.id);
+                        if (account == null) {
+                            sendResponse(exchange, 404, "{}"); // user not found
+                            return;
+                        }
+                        if (!account.password.equals(hashPassword(user.password))) {
+                            sendResponse(exchange, 401, "{}"); // wrong password
+                            return;
+                        }
+                        String token = SessionTokens.issue(account.id, issuedAt);
+                        exchange.getResponseHeaders().set("Content-Type", "application/json");
+                        sendResponse(exchange, 200, "{\"id\":" + account.id + ",\"token\":\"" + token +
+                                "\",\"expires_in_ms\":" + SessionTokens.ttlMillis() + "}");
+                        break;
+
                     case "delete":
                         if (user.id == 0) {
                             sendResponse(exchange, 400, "{}"); // id required for delete
                             return;
                         }
+                        // A valid session token replaces the username/email/password check:
+                        // verified in memory, no lookup and no rehash
+                        String bearer = SessionTokens.fromHeader(exchange.getRequestHeaders().getFirst("Authorization"));
+                        if (bearer != null) {
+                            if (SessionTokens.verify(bearer) != user.id) {
+                                sendResponse(exchange, 401, "{}"); // invalid, expired or someone else's token
+                                return;
+                            }
+                            if (!DatabaseManager.deleteUser(user.id)) {
+                                sendResponse(exchange, 404, "{}"); // user not found
+                                return;
+                            }
+                            SessionTokens.revoke(user.id);
+                            sendResponse(exchange, 200, "{}");
+                            return;
+                        }
                         if (user.password == null) {
                             sendResponse(exchange, 400, "{}"); // password required for verification
                             return;
@@ -166,7 +258,7 @@ public class UserService {
                             sendResponse(exchange, 400, "{}"); // invalid or missing email
                             return;
                         }
-                        UserData dbUser = DatabaseManager.getUser(user.id);
+                        UserData dbUser = DatabaseManager.getUserForUpdate(user.id);
                         if (dbUser == null) {
                             sendResponse(exchange, 404, "{}"); // user not found
                             return;
@@ -177,6 +269,7 @@ public class UserService {
                         boolean passMatch = dbUser.password.equals(inputHash);
                         if (usernameMatch && emailMatch && passMatch) {
                             DatabaseManager.deleteUser(user.id);
+                            SessionTokens.revoke(user.id);
                             sendResponse(exchange, 200, "{}");
                         } else {
                             sendResponse(exchange, 401, "{}"); // data mismatch
@@ -186,19 +279,23 @@ public class UserService {
                     default:
                         sendResponse(exchange, 400, "{}"); // unknown command
                 }
+            } catch (SQLTimeoutException e) {
+                logError("database timeout", e);
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendResponse(exchange, 503, "{}"); // database too slow; safe to retry
             } catch (SQLException e) {
                 // SQLite throws specific messages for constraint violations
                 if ("23505".equals(e.getSQLState()) || e.getMessage().contains("duplicate key")) {
                     sendResponse(exchange, 409, "{}"); // duplicate user
                 } else {
-                    e.printStackTrace();
+                    logError("database error", e);
                     sendResponse(exchange, 500, "Database Error: " + e.getMessage());
                 }
             } catch (JsonSyntaxException e) {
                 // Invalid JSON format
                 sendResponse(exchange, 400, "{}"); // invalid json format
             } catch (Exception e) {
-                e.printStackTrace(); // Log to console for debugging
+                logError("unhandled exception", e);
                 sendResponse(exchange, 500, "Server Error: " + e.getMessage());
             }
         }
@@ -206,6 +303,14 @@ public class UserService {
         private void handleGet(HttpExchange exchange) throws IOException {
             // Parse ID from URL: /user/1001
             String path = exchange.getRequestURI().getPath();
+            if (path.equals("/user/metrics")) {
+                setCommand("metrics");
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                sendResponse(exchange, 200, "{\"read_coalescing\":" + DatabaseManager.coalescingStatsJson() +
+                        ",\"rate_limited\":" + LIMITER.rejected() +
+                        ",\"log_dropped\":" + Log.dropped() + "}");
+                return;
+            }
             String[] segments = path.split("/");
             
             // Expecting segments like ["", "user", "1001"]
@@ -223,9 +328,7 @@ public class UserService {
                 if (user != null) {
                     Gson gson = new Gson();
                     
-                    String jsonResponse = gson.toJson(user);
-                    exchange.getResponseHeaders().set("Content-Type", "application/json");
-                    sendResponse(exchange, 200, jsonResponse);
+                    sendUser(exchange, 200, user, gson);
                 } else {
                     sendResponse(exchange, 404, "{}"); // user not found
                 }
@@ -233,12 +336,122 @@ public class UserService {
             } catch (NumberFormatException e) {
                 // 3. Handle non-integer IDs (e.g., "id=abcd")
                 sendResponse(exchange, 400, "{}"); // id must be a number
+            } catch (SQLTimeoutException e) {
+                // includes giving up on another request's in-flight read of the same id
+                logError("database timeout", e);
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendResponse(exchange, 503, "{}");
+            } catch (SQLException e) {
+                logError("database error", e);
+                sendResponse(exchange, 500, "{}"); // a failed read is not a missing user
             }
         }
     }
 
+    // --- BINARY ENCODING ---
+
+    /*
+     * Compact alternative to the Gson JSON for service-to-service callers, selected with
+     * Content-Type (requests) and Accept (responses) set to MEDIA_TYPE. Big-endian; a
+     * string is an int32 byte length (-1 for null) followed by UTF-8 bytes.
+     *
+     * User:     int32 id | string username | string email | string password
+     * Request:  string command | int32 id (0 = missing) | string username | string email | string password
+     *
+     * Error bodies stay "{}".
+     */
+    static class Binary {
+        static final String MEDIA_TYPE = "application/x-user-bin";
+
+        static boolean accepts(HttpExchange exchange) {
+            String accept = exchange.getRequestHeaders().getFirst("Accept");
+            return accept != null && accept.contains(MEDIA_TYPE);
+        }
+
+        static boolean isBinaryBody(HttpExchange exchange) {
+            String type = exchange.getRequestHeaders().getFirst("Content-Type");
+            return type != null && type.startsWith(MEDIA_TYPE);
+        }
+
+        static byte[] encode(UserData user) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(user.id);
+                writeString(out, user.username);
+                writeString(out, user.email);
+                writeString(out, user.password);
+            }
+            return bytes.toByteArray();
+        }
+
+        static UserData decodeRequest(byte[] body) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            UserData user = new UserData();
+            user.command = readString(in);
+            user.id = in.readInt();
+            user.username = readString(in);
+            user.email = readString(in);
+            user.password = readString(in);
+            return user;
+        }
+
+        static void writeString(DataOutputStream out, String s) throws IOException {
+            if (s == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        static String readString(DataInputStream in) throws IOException {
+            int len = in.readInt();
+            if (len < 0) return null;
+            if (len > in.available()) throw new EOFException("string length exceeds body");
+            byte[] b = new byte[len];
+            in.readFully(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+    }
+
     // --- HELPER METHODS ---
 
+    // Per-request context for logging
+    // One per handler thread, reset by handle(): exchange attributes are stored in the
+    // shared HttpContext, so concurrent requests would overwrite each other's values
+    private static final class RequestContext {
+        long reqId;
+        String command; // null until known (bad body, 405, 429, ...)
+    }
+
+    private static final ThreadLocal<RequestContext> CONTEXT = ThreadLocal.withInitial(RequestContext::new);
+
+    private static void setCommand(String command) {
+        CONTEXT.get().command = command;
+        Profiling.command(command);
+    }
+
+    private static void logError(String message, Throwable t) {
+        RequestContext ctx = CONTEXT.get();
+        Log.error(ctx.reqId, ctx.command, message, t);
+    }
+
+    // JSON unless the client asked for the binary form
+    private static void sendUser(HttpExchange exchange, int statusCode, UserData user, Gson gson) throws IOException {
+        if (!Binary.accepts(exchange)) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            sendResponse(exchange, statusCode, gson.toJson(user));
+            return;
+        }
+        byte[] bytes = Binary.encode(user);
+        exchange.getResponseHeaders().set("Content-Type", Binary.MEDIA_TYPE);
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
     private static void sendResponse(HttpExchange exchange, int statusCode, String response ) throws IOException {
         exchange.sendResponseHeaders(statusCode, response.length());
         try (OutputStream os = exchange.getResponseBody()) {
@@ -246,8 +459,8 @@ public class UserService {
         }
     }
 
-    private static String getRequestBody(HttpExchange exchange) throws IOException {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+    private static String getRequestBody(byte[] raw) throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(raw), StandardCharsets.UTF_8))) {
             StringBuilder requestBody = new StringBuilder();
             String line;
             while ((line = br.readLine()) != null) {
@@ -257,6 +470,12 @@ public class UserService {
         }
     }
 
+    private static byte[] getRequestBytes(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return in.readAllBytes();
+        }
+    }
+
     // Parses "id=1&name=bob" into a Map
     private static Map<String, String> parseQuery(String query) {
         Map<String, String> result = new HashMap<>();
@@ -273,6 +492,7 @@ public class UserService {
     }
 
     public static String hashPassword(String password) {
+        long start = System.nanoTime();
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
             byte[] encodedhash = digest.digest(password.getBytes(StandardCharsets.UTF_8));
@@ -289,6 +509,8 @@ public class UserService {
             return hexString.toString().toUpperCase(); // To match your uppercase output
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
+        } finally {
+            Profiling.hashTime(System.nanoTime() - start);
         }
     }
 
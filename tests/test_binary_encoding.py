@@ -0,0 +1,208 @@
+import json
+import struct
+import sys
+import time
+import urllib.request
+import urllib.error
+from typing import Any, Dict, Optional, Tuple
+
+# ---------------- CONFIG ----------------
+USER_BASE_URL = "http://localhost:8081"
+PRODUCT_BASE_URL = "http://localhost:8082"
+
+PRODUCT_BIN = "application/x-product-bin"
+USER_BIN = "application/x-user-bin"
+
+# ids well away from the ones used by the other test files
+PRODUCT_ID = 990001
+PRODUCT_ID_BIN = 990002
+USER_ID = 990001
+USER_ID_BIN = 990002
+
+DECODE_ROUNDS = 20000
+PRICE_EPS = 1e-9
+
+
+# ---------------- ENCODING ----------------
+# Mirrors ProductService.Binary / UserService.Binary: big-endian,
+# strings are an int32 byte length (-1 for null) followed by UTF-8.
+def enc_str(s: Optional[str]) -> bytes:
+    if s is None:
+        return struct.pack(">i", -1)
+    b = s.encode("utf-8")
+    return struct.pack(">i", len(b)) + b
+
+
+def dec_str(buf: bytes, pos: int) -> Tuple[Optional[str], int]:
+    (n,) = struct.unpack_from(">i", buf, pos)
+    pos += 4
+    if n < 0:
+        return None, pos
+    return buf[pos:pos + n].decode("utf-8"), pos + n
+
+
+def encode_product_request(req: Dict[str, Any]) -> bytes:
+    fields = [("id", ">i"), ("name", None), ("description", None), ("price", ">d"), ("quantity", ">i")]
+    mask = 0
+    body = b""
+    for bit, (name, fmt) in enumerate(fields):
+        if name not in req:
+            continue
+        mask |= 1 << bit
+        body += enc_str(req[name]) if fmt is None else struct.pack(fmt, req[name])
+    return enc_str(req["command"]) + struct.pack(">B", mask) + body
+
+
+def decode_product(buf: bytes) -> Dict[str, Any]:
+    (pid,) = struct.unpack_from(">i", buf, 0)
+    name, pos = dec_str(buf, 4)
+    description, pos = dec_str(buf, pos)
+    price, quantity = struct.unpack_from(">di", buf, pos)
+    return {"id": pid, "name": name, "description": description, "price": price, "quantity": quantity}
+
+
+def encode_user_request(req: Dict[str, Any]) -> bytes:
+    return (enc_str(req.get("command")) + struct.pack(">i", req.get("id", 0)) +
+            enc_str(req.get("username")) + enc_str(req.get("email")) + enc_str(req.get("password")))
+
+
+def decode_user(buf: bytes) -> Dict[str, Any]:
+    (uid,) = struct.unpack_from(">i", buf, 0)
+    username, pos = dec_str(buf, 4)
+    email, pos = dec_str(buf, pos)
+    password, pos = dec_str(buf, pos)
+    return {"id": uid, "username": username, "email": email, "password": password}
+
+
+# ---------------- HTTP ----------------
+def call(url: str, method: str = "GET", data: Optional[bytes] = None,
+         headers: Optional[Dict[str, str]] = None) -> Tuple[int, bytes]:
+    req = urllib.request.Request(url, data=data, headers=headers or {}, method=method)
+    try:
+        with urllib.request.urlopen(req) as resp:
+            return resp.getcode(), resp.read()
+    except urllib.error.HTTPError as e:
+        return e.code, e.read()
+
+
+def post_json(url: str, body: Dict[str, Any]) -> Tuple[int, bytes]:
+    return call(url, "POST", json.dumps(body).encode("utf-8"), {"Content-Type": "application/json"})
+
+
+# ---------------- CHECKS ----------------
+results = []
+
+
+def check(name: str, ok: bool, detail: str = "") -> None:
+    results.append((name, ok))
+    print(f"[{name}] {'✅' if ok else '❌'} {detail}")
+
+
+def same_fields(a: Dict[str, Any], b: Dict[str, Any], fields) -> bool:
+    for f in fields:
+        if f == "price":
+            if abs(float(a[f]) - float(b[f])) > PRICE_EPS:
+                return False
+        elif a.get(f) != b.get(f):
+            return False
+    return True
+
+
+def time_decode(fn, payload) -> float:
+    start = time.perf_counter()
+    for _ in range(DECODE_ROUNDS):
+        fn(payload)
+    return DECODE_ROUNDS / (time.perf_counter() - start)
+
+
+def report_sizes(label: str, json_body: bytes, bin_body: bytes, json_decode, bin_decode) -> None:
+    print(f"  {label}: json {len(json_body)} bytes, binary {len(bin_body)} bytes "
+          f"({100.0 * len(bin_body) / len(json_body):.0f}%)")
+    print(f"  {label}: decode json {time_decode(json_decode, json_body):,.0f}/s, "
+          f"binary {time_decode(bin_decode, bin_body):,.0f}/s")
+
+
+def run_products() -> None:
+    url = f"{PRODUCT_BASE_URL}/product"
+    product = {"id": PRODUCT_ID, "name": "Binary Widget", "description": "héllo \"quoted\" \\ text",
+               "price": 12.75, "quantity": 40}
+
+    post_json(url, {"command": "delete", **product})
+    status, _ = post_json(url, {"command": "create", **product})
+    check("product_create_json", status == 200, str(status))
+
+    # same product, both representations
+    _, json_body = call(f"{url}/{PRODUCT_ID}")
+    status, bin_body = call(f"{url}/{PRODUCT_ID}", headers={"Accept": PRODUCT_BIN})
+    from_json = json.loads(json_body)
+    from_bin = decode_product(bin_body)
+    check("product_get_binary_matches_json", status == 200 and same_fields(from_json, from_bin, product.keys()),
+          f"{from_bin}")
+
+    # binary request in, binary response out, JSON read back
+    product_bin = dict(product, id=PRODUCT_ID_BIN)
+    post_json(url, {"command": "delete", **product_bin})
+    status, body = call(url, "POST", encode_product_request({"command": "create", **product_bin}),
+                        {"Content-Type": PRODUCT_BIN, "Accept": PRODUCT_BIN})
+    check("product_create_binary", status == 200 and same_fields(decode_product(body), product_bin, product.keys()),
+          str(status))
+    _, body = call(f"{url}/{PRODUCT_ID_BIN}")
+    check("product_binary_create_visible_as_json", same_fields(json.loads(body), product_bin, product.keys()))
+
+    status, _ = call(url, "POST", encode_product_request({"command": "update", "id": PRODUCT_ID_BIN, "quantity": 7}),
+                     {"Content-Type": PRODUCT_BIN})
+    _, body = call(f"{url}/{PRODUCT_ID_BIN}")
+    check("product_update_binary_partial", status == 200 and json.loads(body)["quantity"] == 7, str(status))
+
+    status, _ = call(url, "POST", b"\x00\x00", {"Content-Type": PRODUCT_BIN})
+    check("product_truncated_binary_400", status == 400, str(status))
+
+    report_sizes("product", json_body, bin_body, json.loads, decode_product)
+
+    post_json(url, {"command": "delete", **product})
+    post_json(url, {"command": "delete", **dict(product_bin, quantity=7)})
+
+
+def run_users() -> None:
+    url = f"{USER_BASE_URL}/user"
+    user = {"id": USER_ID, "username": "binary_user", "email": "binary@example.com", "password": "pw-1"}
+
+    post_json(url, {"command": "delete", **user})
+    status, _ = post_json(url, {"command": "create", **user})
+    check("user_create_json", status == 200, str(status))
+
+    _, json_body = call(f"{url}/{USER_ID}")
+    status, bin_body = call(f"{url}/{USER_ID}", headers={"Accept": USER_BIN})
+    from_json = json.loads(json_body)
+    from_bin = decode_user(bin_body)
+    check("user_get_binary_matches_json",
+          status == 200 and same_fields(from_json, from_bin, ["id", "username", "email", "password"]), f"{from_bin}")
+
+    user_bin = dict(user, id=USER_ID_BIN, username="binary_user_2")
+    post_json(url, {"command": "delete", **user_bin})
+    status, body = call(url, "POST", encode_user_request({"command": "create", **user_bin}),
+                        {"Content-Type": USER_BIN, "Accept": USER_BIN})
+    check("user_create_binary", status == 200 and decode_user(body)["username"] == user_bin["username"], str(status))
+    _, body = call(f"{url}/{USER_ID_BIN}")
+    check("user_binary_create_visible_as_json", json.loads(body).get("email") == user_bin["email"])
+
+    report_sizes("user", json_body, bin_body, json.loads, decode_user)
+
+    post_json(url, {"command": "delete", **user})
+    post_json(url, {"command": "delete", **user_bin})
+
+
+def run():
+    for section in (run_products, run_users):
+        try:
+            section()
+        except urllib.error.URLError as e:
+            check(section.__name__, False, f"CONNECTION FAILED: {e}")
+
+    failed = [name for name, ok in results if not ok]
+    print(f"\n{len(results) - len(failed)}/{len(results)} checks passed")
+    sys.exit(1 if failed else 0)
+
+
+if __name__ == "__main__":
+    run()
@@ -0,0 +1,199 @@
+import json
+import socket
+import sys
+import threading
+import time
+import urllib.request
+import urllib.error
+from typing import Any, Dict, List, Optional, Tuple
+
+# ---------------- CONFIG ----------------
+# Needs a running ProductService: python test_change_feed.py
+#
+# Opens STALLED_SUBSCRIBERS feed connections that never read next to one that does,
+# then writes enough large updates to fill the stalled sockets' buffers. The reading
+# subscriber must keep receiving every change, writes must not slow down, and the
+# stalled ones must be disconnected once their writes have been stuck for longer
+# than the feed's stall timeout.
+PRODUCT_BASE_URL = "http://localhost:8082"
+FEED_HOST, FEED_PORT = "localhost", 8082
+
+# ids well away from the ones used by the other test files
+FIRST_ID = 990301
+ID_COUNT = 10
+ROUNDS = 40                   # ID_COUNT * ROUNDS updates in total
+DESCRIPTION_BYTES = 16_000    # ~6 MB of events per subscriber across all rounds
+
+STALLED_SUBSCRIBERS = 5
+STALL_TIMEOUT = 5.0           # ChangeFeed.STALL_TIMEOUT_MS
+WATCHDOG_SLACK = 3.0
+SLOW_WRITE = 2.0              # seconds; any single update slower than this fails the test
+
+
+# ---------------- HTTP ----------------
+def call(url: str, method: str = "GET", data: Optional[bytes] = None,
+         headers: Optional[Dict[str, str]] = None) -> Tuple[int, bytes]:
+    req = urllib.request.Request(url, data=data, headers=headers or {}, method=method)
+    try:
+        with urllib.request.urlopen(req) as resp:
+            return resp.getcode(), resp.read()
+    except urllib.error.HTTPError as e:
+        return e.code, e.read()
+
+
+def post_json(url: str, body: Dict[str, Any]) -> Tuple[int, bytes]:
+    return call(url, "POST", json.dumps(body).encode("utf-8"), {"Content-Type": "application/json"})
+
+
+def metrics() -> Dict[str, Any]:
+    status, body = call(f"{PRODUCT_BASE_URL}/product/metrics")
+    return json.loads(body) if status == 200 else {}
+
+
+# ---------------- FEED CLIENTS ----------------
+def open_feed(rcvbuf: Optional[int] = None) -> socket.socket:
+    s = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+    if rcvbuf:
+        # small receive window so the server's writes back up quickly
+        s.setsockopt(socket.SOL_SOCKET, socket.SO_RCVBUF, rcvbuf)
+    s.connect((FEED_HOST, FEED_PORT))
+    s.sendall(f"GET /product/changes HTTP/1.1\r\nHost: {FEED_HOST}\r\n\r\n".encode("ascii"))
+    return s
+
+
+class Reader:
+    """Reads one feed connection and collects the ids of the update events it sees."""
+
+    def __init__(self):
+        self.sock = open_feed()
+        self.updates: List[int] = []
+        self.lock = threading.Lock()
+        threading.Thread(target=self.run, daemon=True).start()
+
+    def run(self) -> None:
+        stream = self.sock.makefile("rb")
+        buf = b""
+        try:
+            while stream.readline() not in (b"\r\n", b""):  # response headers
+                pass
+            while True:
+                size = int(stream.readline().strip() or b"0", 16)  # chunked transfer encoding
+                if size == 0:
+                    return
+                buf += stream.read(size)
+                stream.readline()
+                while b"\n\n" in buf:
+                    frame, buf = buf.split(b"\n\n", 1)
+                    lines = frame.split(b"\n")
+                    if b"event: update" in lines:
+                        for line in lines:
+                            if line.startswith(b"data: "):
+                                with self.lock:
+                                    self.updates.append(json.loads(line[6:])["id"])
+        except (OSError, ValueError):
+            return
+
+    def count(self) -> int:
+        with self.lock:
+            return len(self.updates)
+
+
+def is_disconnected(s: socket.socket) -> bool:
+    # drains whatever was delivered before the server cut the connection
+    s.settimeout(2.0)
+    try:
+        while True:
+            data = s.recv(1 << 20)
+            if not data:
+                return True
+    except ConnectionResetError:
+        return True
+    except socket.timeout:
+        return False
+
+
+# ---------------- CHECKS ----------------
+results = []
+
+
+def check(name: str, ok: bool, detail: str = "") -> None:
+    results.append((name, ok))
+    print(f"[{name}] {'✅' if ok else '❌'} {detail}")
+
+
+def product(pid: int) -> Dict[str, Any]:
+    return {"id": pid, "name": f"Feed Widget {pid}", "description": "feed", "price": 1.5, "quantity": 1}
+
+
+def run_checks() -> None:
+    url = f"{PRODUCT_BASE_URL}/product"
+    ids = list(range(FIRST_ID, FIRST_ID + ID_COUNT))
+    for pid in ids:
+        post_json(url, {"command": "delete", **product(pid)})
+        post_json(url, {"command": "delete", **dict(product(pid), quantity=2)})
+        post_json(url, {"command": "create", **product(pid)})
+
+    before = metrics()
+    stalled = [open_feed(rcvbuf=2048) for _ in range(STALLED_SUBSCRIBERS)]
+    reader = Reader()
+    time.sleep(0.5)
+    subscribed = metrics().get("feed_subscribers", 0) - before.get("feed_subscribers", 0)
+    check("feed_subscribed", subscribed == STALLED_SUBSCRIBERS + 1, f"{subscribed} new subscribers")
+
+    updated, slowest = 0, 0.0
+    for r in range(ROUNDS):
+        pad = chr(ord("a") + r % 26) * DESCRIPTION_BYTES
+        for pid in ids:
+            t0 = time.perf_counter()
+            status, _ = post_json(url, {"command": "update", "id": pid, "description": pad})
+            slowest = max(slowest, time.perf_counter() - t0)
+            updated += status == 200
+    finished = time.perf_counter()
+    expected = ID_COUNT * ROUNDS
+    check("writes_not_blocked", updated == expected and slowest < SLOW_WRITE,
+          f"{updated}/{expected} updates, slowest {slowest:.2f}s")
+
+    # the reader keeps up while the others sit on full buffers
+    deadline = time.perf_counter() + 10
+    while reader.count() < expected and time.perf_counter() < deadline:
+        time.sleep(0.1)
+    check("reader_gets_every_update", reader.count() == expected, f"{reader.count()}/{expected} events")
+
+    # the stalled ones are cut off once their writes pass the stall timeout
+    wait = finished + STALL_TIMEOUT + WATCHDOG_SLACK - time.perf_counter()
+    if wait > 0:
+        time.sleep(wait)
+    after = metrics()
+    dropped = after.get("feed_dropped", 0) - before.get("feed_dropped", 0)
+    check("stalled_dropped", dropped == STALLED_SUBSCRIBERS, f"{dropped} dropped")
+    cut = sum(is_disconnected(s) for s in stalled)
+    check("stalled_disconnected", cut == STALLED_SUBSCRIBERS, f"{cut}/{STALLED_SUBSCRIBERS} connections closed")
+
+    # ... and the healthy one is still live afterwards
+    count = reader.count()
+    post_json(url, {"command": "update", "id": ids[0], "quantity": 2})
+    deadline = time.perf_counter() + 5
+    while reader.count() == count and time.perf_counter() < deadline:
+        time.sleep(0.1)
+    check("reader_still_live", reader.count() == count + 1, f"{reader.count() - count} new events")
+    check("feed_subscribers_left", after.get("feed_subscribers", 0) == before.get("feed_subscribers", 0) + 1,
+          str(after))
+
+    reader.sock.close()
+    for pid in ids:
+        post_json(url, {"command": "delete", **dict(product(pid), quantity=2 if pid == ids[0] else 1)})
+
+
+def run():
+    try:
+        run_checks()
+    except (urllib.error.URLError, ConnectionError) as e:
+        check("feed", False, f"CONNECTION FAILED: {e}")
+
+    failed = [name for name, ok in results if not ok]
+    print(f"\n{len(results) - len(failed)}/{len(results)} checks passed")
+    sys.exit(1 if failed else 0)
+
+
+if __name__ == "__main__":
+    run()
@@ -0,0 +1,275 @@
+import json
+import os
+import subprocess
+import sys
+import threading
+import time
+import urllib.request
+import urllib.error
+from http.server import BaseHTTPRequestHandler, ThreadingHTTPServer
+from typing import Any, Dict, Optional, Tuple
+
+# ---------------- CONFIG ----------------
+# Runs entirely locally: stub user/product services are started in this process and
+# GatewayService is launched against them. Compile it first:
+#   cd src/GatewayService && javac GatewayService.java
+# python test_gateway.py [directory with GatewayService.class]
+GATEWAY_CLASSES = sys.argv[1] if len(sys.argv) > 1 else os.path.join(
+    os.path.dirname(os.path.abspath(__file__)), "..", "src", "GatewayService")
+
+GATEWAY_PORT = 18080
+USER_PORT = 18181
+PRODUCT_PORT = 18182
+GATEWAY_URL = f"http://localhost:{GATEWAY_PORT}"
+
+# long enough that parallel GETs overlap on the wire
+UPSTREAM_DELAY = 0.4
+PARALLEL_GETS = 10
+
+# stub GET /product/changes: a few events, then held open like a live feed
+STREAM_EVENTS = 3
+STREAM_INTERVAL = 0.2
+STREAM_HOLD = 3.0
+OPEN_STREAMS = 25  # more than the gateway's 20 server workers
+
+
+# ---------------- STUB UPSTREAMS ----------------
+class Upstream:
+    def __init__(self, name: str, port: int):
+        self.name = name
+        self.hits: Dict[str, int] = {}
+        self.last_headers: Dict[str, Dict[str, str]] = {}
+        self.lock = threading.Lock()
+        upstream = self
+
+        class Handler(BaseHTTPRequestHandler):
+            def do_GET(self):
+                upstream.record(self)
+                if self.path.split("?")[0] == "/product/changes":
+                    self.stream()
+                    return
+                time.sleep(UPSTREAM_DELAY)
+                parts = self.path.split("?")[0].strip("/").split("/")
+                if len(parts) != 2 or not parts[1].isdigit():
+                    self.reply(400, {"error": "bad path"})
+                elif parts[1] == "404":
+                    self.reply(404, {})
+                elif parts[1] == "429":
+                    self.reply(429, {}, {"Retry-After": "7"})
+                else:
+                    self.reply(200, {"id": int(parts[1]), "kind": upstream.name})
+
+            def do_POST(self):
+                upstream.record(self)
+                body = self.rfile.read(int(self.headers.get("Content-Length", "0")))
+                self.reply(200, {"echo": json.loads(body or b"{}")})
+
+            def stream(self):
+                self.send_response(200)
+                self.send_header("Content-Type", "text/event-stream")
+                self.end_headers()
+                try:
+                    for seq in range(1, STREAM_EVENTS + 1):
+                        self.wfile.write(f"id: {seq}\nevent: update\ndata: {{}}\n\n".encode("utf-8"))
+                        self.wfile.flush()
+                        time.sleep(STREAM_INTERVAL)
+                    time.sleep(STREAM_HOLD)
+                except OSError:
+                    pass
+
+            def reply(self, status: int, body: Dict[str, Any], headers: Optional[Dict[str, str]] = None):
+                data = json.dumps(body).encode("utf-8")
+                self.send_response(status)
+                self.send_header("Content-Type", "application/json")
+                self.send_header("Content-Length", str(len(data)))
+                for k, v in (headers or {}).items():
+                    self.send_header(k, v)
+                self.end_headers()
+                self.wfile.write(data)
+
+            def log_message(self, *args):
+                pass
+
+        self.server = ThreadingHTTPServer(("localhost", port), Handler)
+        threading.Thread(target=self.server.serve_forever, daemon=True).start()
+
+    def record(self, handler: BaseHTTPRequestHandler) -> None:
+        path = handler.path.split("?")[0]
+        with self.lock:
+            self.hits[path] = self.hits.get(path, 0) + 1
+            self.last_headers[path] = {k.lower(): v for k, v in handler.headers.items()}
+
+    def count(self, path: str) -> int:
+        with self.lock:
+            return self.hits.get(path, 0)
+
+
+# ---------------- HTTP ----------------
+def call(url: str, method: str = "GET", data: Optional[bytes] = None,
+         headers: Optional[Dict[str, str]] = None) -> Tuple[int, bytes, Dict[str, str]]:
+    req = urllib.request.Request(url, data=data, headers=headers or {}, method=method)
+    try:
+        with urllib.request.urlopen(req) as resp:
+            return resp.getcode(), resp.read(), {k.lower(): v for k, v in resp.headers.items()}
+    except urllib.error.HTTPError as e:
+        return e.code, e.read(), {k.lower(): v for k, v in e.headers.items()}
+
+
+def parallel_gets(url: str, headers_for=lambda i: {}) -> list:
+    start = threading.Barrier(PARALLEL_GETS)
+    out = [None] * PARALLEL_GETS
+
+    def worker(i: int) -> None:
+        start.wait()
+        out[i] = call(url, headers=headers_for(i))
+
+    threads = [threading.Thread(target=worker, args=(i,)) for i in range(PARALLEL_GETS)]
+    for t in threads:
+        t.start()
+    for t in threads:
+        t.join()
+    return out
+
+
+def open_stream(url: str):
+    resp = urllib.request.urlopen(urllib.request.Request(url, headers={"Accept": "text/event-stream"}))
+    return resp
+
+
+def read_event(resp) -> Optional[str]:
+    """Returns the id of the next event, or None if the stream ended first."""
+    while True:
+        line = resp.readline()
+        if not line:
+            return None
+        if line.startswith(b"id: "):
+            return line[4:].strip().decode("ascii")
+
+
+# ---------------- CHECKS ----------------
+results = []
+
+
+def check(name: str, ok: bool, detail: str = "") -> None:
+    results.append((name, ok))
+    print(f"[{name}] {'✅' if ok else '❌'} {detail}")
+
+
+def run_checks(user: Upstream, product: Upstream) -> None:
+    # proxying
+    status, body, _ = call(f"{GATEWAY_URL}/product", "POST", json.dumps({"command": "create", "id": 1}).encode(),
+                           {"Content-Type": "application/json", "X-API-Key": "k1"})
+    forwarded = product.last_headers.get("/product", {})
+    check("proxy_post", status == 200 and json.loads(body)["echo"]["id"] == 1, str(status))
+    check("proxy_post_headers", forwarded.get("x-api-key") == "k1" and "x-forwarded-for" in forwarded,
+          str(forwarded))
+
+    status, body, _ = call(f"{GATEWAY_URL}/user/5", headers={"X-API-Key": "k2"})
+    check("proxy_get", status == 200 and json.loads(body) == {"id": 5, "kind": "user"}, str(status))
+    forwarded = user.last_headers.get("/user/5", {})
+    check("proxy_get_headers", forwarded.get("x-api-key") == "k2" and "x-forwarded-for" in forwarded,
+          str(forwarded))
+
+    status, _, headers = call(f"{GATEWAY_URL}/product/429")
+    check("proxy_retry_after", status == 429 and headers.get("retry-after") == "7", f"{status} {headers}")
+
+    # coalescing: identical GETs in flight together hit the upstream once
+    responses = parallel_gets(f"{GATEWAY_URL}/product/7")
+    ok = all(r[0] == 200 and json.loads(r[1])["id"] == 7 for r in responses)
+    check("coalesce_same_get", ok and product.count("/product/7") <= 2,
+          f"{PARALLEL_GETS} requests, {product.count('/product/7')} upstream calls")
+
+    # ... but not across API keys, which are rate limited separately upstream
+    parallel_gets(f"{GATEWAY_URL}/product/8", lambda i: {"X-API-Key": f"key-{i % 2}"})
+    check("coalesce_per_api_key", product.count("/product/8") == 2, f"{product.count('/product/8')} upstream calls")
+
+    # composite: user and products fetched in parallel, missing product reported in place
+    start = time.perf_counter()
+    status, body, _ = call(f"{GATEWAY_URL}/composite/user/3?products=11,12,404")
+    elapsed = time.perf_counter() - start
+    doc = json.loads(body) if status == 200 else {}
+    check("composite_document", status == 200 and doc.get("user", {}).get("id") == 3
+          and [p.get("id") for p in doc.get("products", [])] == [11, 12, 404]
+          and doc["products"][2].get("status") == 404, body.decode("utf-8", "replace"))
+    check("composite_parallel", elapsed < 3 * UPSTREAM_DELAY, f"{elapsed:.2f}s for 4 upstream calls")
+
+    status, _, _ = call(f"{GATEWAY_URL}/composite/user/404")
+    check("composite_user_missing", status == 404, str(status))
+    status, _, _ = call(f"{GATEWAY_URL}/composite/user/abc")
+    check("composite_bad_id", status == 400, str(status))
+
+    # event streams: relayed as they arrive, one upstream call each, no worker held
+    start = time.perf_counter()
+    resp = open_stream(f"{GATEWAY_URL}/product/changes")
+    first = read_event(resp)
+    elapsed = time.perf_counter() - start
+    check("stream_relayed", first == "1" and elapsed < STREAM_INTERVAL * STREAM_EVENTS,
+          f"first event after {elapsed:.2f}s")
+    ids = [first] + [read_event(resp) for _ in range(STREAM_EVENTS - 1)]
+    check("stream_in_order", ids == [str(i) for i in range(1, STREAM_EVENTS + 1)], str(ids))
+    resp.close()
+
+    hits = product.count("/product/changes")
+    streams = [open_stream(f"{GATEWAY_URL}/product/changes") for _ in range(OPEN_STREAMS)]
+    status, body, _ = call(f"{GATEWAY_URL}/gateway/metrics")
+    open_now = json.loads(body).get("open_streams", 0) if status == 200 else 0
+    start = time.perf_counter()
+    status, _, _ = call(f"{GATEWAY_URL}/user/6")
+    elapsed = time.perf_counter() - start
+    check("stream_not_coalesced", product.count("/product/changes") - hits == OPEN_STREAMS,
+          f"{product.count('/product/changes') - hits} upstream calls for {OPEN_STREAMS} streams")
+    check("stream_frees_workers", status == 200 and elapsed < 3 * UPSTREAM_DELAY,
+          f"GET with {OPEN_STREAMS} streams open: {status} in {elapsed:.2f}s")
+    # >=: the stream closed above is only noticed at its next write
+    check("stream_metrics", open_now >= OPEN_STREAMS, f"open_streams={open_now}")
+    ended = sum(read_event(r) == "1" for r in streams)
+    check("stream_all_served", ended == OPEN_STREAMS, f"{ended}/{OPEN_STREAMS} streams got their events")
+    for r in streams:
+        r.close()
+
+    # metrics
+    status, body, _ = call(f"{GATEWAY_URL}/gateway/metrics")
+    metrics = json.loads(body) if status == 200 else {}
+    check("metrics_routes", status == 200 and {"user", "product", "composite"} <= metrics.keys(), str(metrics))
+    check("metrics_counts", metrics.get("product", {}).get("requests", 0) >= 2 * PARALLEL_GETS + 2
+          and metrics["product"].get("coalesced", 0) >= PARALLEL_GETS - 2
+          and metrics.get("composite", {}).get("requests", 0) >= 3, str(metrics.get("product")))
+
+
+def wait_for_gateway(proc: subprocess.Popen) -> bool:
+    for _ in range(50):
+        if proc.poll() is not None:
+            return False
+        try:
+            call(f"{GATEWAY_URL}/gateway/metrics")
+            return True
+        except urllib.error.URLError:
+            time.sleep(0.1)
+    return False
+
+
+def run():
+    user = Upstream("user", USER_PORT)
+    product = Upstream("product", PRODUCT_PORT)
+
+    env = dict(os.environ, GATEWAY_PORT=str(GATEWAY_PORT),
+               USER_SERVICE_URL=f"http://localhost:{USER_PORT}",
+               PRODUCT_SERVICE_URL=f"http://localhost:{PRODUCT_PORT}")
+    proc = subprocess.Popen(["java", "-cp", GATEWAY_CLASSES, "GatewayService"], env=env,
+                            stdout=subprocess.DEVNULL, stderr=subprocess.STDOUT)
+    try:
+        if not wait_for_gateway(proc):
+            check("gateway_start", False, f"GatewayService did not start from {GATEWAY_CLASSES}")
+        else:
+            run_checks(user, product)
+    finally:
+        proc.terminate()
+        proc.wait()
+
+    failed = [name for name, ok in results if not ok]
+    print(f"\n{len(results) - len(failed)}/{len(results)} checks passed")
+    sys.exit(1 if failed else 0)
+
+
+if __name__ == "__main__":
+    run()
@@ -0,0 +1,217 @@
+import json
+import sys
+import threading
+import time
+import urllib.request
+import urllib.error
+from typing import Any, Callable, Dict, List, Optional, Tuple
+
+# ---------------- CONFIG ----------------
+# python test_read_coalescing.py [consistency | timeout | dberror]
+#
+# consistency (default): both services running normally. Many parallel GETs of one
+#   product and one user run while the row is updated; every read that started after
+#   the update's response must see the new value, and the metrics must show reads
+#   being shared.
+# timeout: start both services with COALESCE_TIMEOUT_MS=1, so requests that join an
+#   in-flight read give up before it finishes. They must get 503 with Retry-After,
+#   never 404.
+# dberror: start both services with a wrong DB_PASSWORD. Every read fails, and the
+#   leader and every request waiting on it must get 500, never 404.
+PRODUCT_BASE_URL = "http://localhost:8082"
+USER_BASE_URL = "http://localhost:8081"
+
+# ids well away from the ones used by the other test files
+PRODUCT_ID = 990401
+USER_ID = 990401
+
+READERS = 20
+ROUNDS = 5
+READ_WINDOW = 0.3  # seconds of reading on each side of an update
+
+
+# ---------------- HTTP ----------------
+def call(url: str, method: str = "GET", data: Optional[bytes] = None,
+         headers: Optional[Dict[str, str]] = None) -> Tuple[int, bytes, Dict[str, str]]:
+    req = urllib.request.Request(url, data=data, headers=headers or {}, method=method)
+    try:
+        with urllib.request.urlopen(req) as resp:
+            return resp.getcode(), resp.read(), {k.lower(): v for k, v in resp.headers.items()}
+    except urllib.error.HTTPError as e:
+        return e.code, e.read(), {k.lower(): v for k, v in e.headers.items()}
+
+
+def post_json(url: str, body: Dict[str, Any]) -> Tuple[int, bytes, Dict[str, str]]:
+    return call(url, "POST", json.dumps(body).encode("utf-8"), {"Content-Type": "application/json"})
+
+
+def coalescing(base_url: str, service: str) -> Dict[str, Any]:
+    status, body, _ = call(f"{base_url}/{service}/metrics")
+    return json.loads(body).get("read_coalescing", {}) if status == 200 else {}
+
+
+def delta(before: Dict[str, Any], after: Dict[str, Any], key: str) -> int:
+    return after.get(key, 0) - before.get(key, 0)
+
+
+# ---------------- PARALLEL READS ----------------
+class Read:
+    def __init__(self, started: float, status: int, body: bytes, headers: Dict[str, str]):
+        self.started = started
+        self.status = status
+        self.body = body
+        self.headers = headers
+
+
+def read_while(url: str, during: Callable[[], Any]) -> Tuple[List[Read], Any]:
+    """READERS threads GET url in a loop while during() runs, and a little before and after it."""
+    reads: List[Read] = []
+    lock = threading.Lock()
+    stop = threading.Event()
+
+    def reader() -> None:
+        while not stop.is_set():
+            started = time.monotonic()
+            status, body, headers = call(url)
+            with lock:
+                reads.append(Read(started, status, body, headers))
+
+    threads = [threading.Thread(target=reader) for _ in range(READERS)]
+    for t in threads:
+        t.start()
+    time.sleep(READ_WINDOW)
+    result = during()
+    time.sleep(READ_WINDOW)
+    stop.set()
+    for t in threads:
+        t.join()
+    return reads, result
+
+
+# ---------------- CHECKS ----------------
+results = []
+
+
+def check(name: str, ok: bool, detail: str = "") -> None:
+    results.append((name, ok))
+    print(f"[{name}] {'✅' if ok else '❌'} {detail}")
+
+
+def product(quantity: int) -> Dict[str, Any]:
+    return {"id": PRODUCT_ID, "name": "Coalesced Widget", "description": "read coalescing",
+            "price": 2.0, "quantity": quantity}
+
+
+def user(email: str) -> Dict[str, Any]:
+    return {"id": USER_ID, "username": f"coalesce_{USER_ID}", "email": email, "password": "pw-coalesce"}
+
+
+def read_after_write(name: str, url: str, update: Callable[[int], int], value: Callable[[bytes], Any],
+                     expected: Callable[[int], Any]) -> None:
+    stale, failed, total = 0, 0, 0
+    for r in range(1, ROUNDS + 1):
+        def write() -> float:
+            update(r)
+            return time.monotonic()  # the update's response is in
+
+        reads, done = read_while(url, write)
+        total += len(reads)
+        failed += sum(rd.status != 200 for rd in reads)
+        # reads that overlap the update may see either value; later ones must see the new one
+        stale += sum(rd.started > done and rd.status == 200 and value(rd.body) != expected(r) for rd in reads)
+    check(f"{name}_reads_ok", failed == 0, f"{failed} of {total} reads failed")
+    check(f"{name}_read_after_write", stale == 0, f"{stale} stale reads after an update's response")
+
+
+def run_consistency() -> None:
+    purl = f"{PRODUCT_BASE_URL}/product"
+    uurl = f"{USER_BASE_URL}/user"
+
+    for q in range(ROUNDS + 2):
+        post_json(purl, {"command": "delete", **product(q)})
+    status, _, _ = post_json(purl, {"command": "create", **product(0)})
+    check("product_create", status == 200, str(status))
+
+    post_json(uurl, {"command": "delete", **user("v0@example.com")})
+    for r in range(1, ROUNDS + 1):
+        post_json(uurl, {"command": "delete", **user(f"v{r}@example.com")})
+    status, _, _ = post_json(uurl, {"command": "create", **user("v0@example.com")})
+    check("user_create", status == 200, str(status))
+
+    before = coalescing(PRODUCT_BASE_URL, "product")
+    read_after_write(
+        "product", f"{purl}/{PRODUCT_ID}",
+        lambda r: post_json(purl, {"command": "update", "id": PRODUCT_ID, "quantity": r})[0],
+        lambda body: json.loads(body)["quantity"],
+        lambda r: r)
+    after = coalescing(PRODUCT_BASE_URL, "product")
+    check("product_metrics_coalesced", delta(before, after, "coalesced") > 0 and delta(before, after, "queries") > 0,
+          str(after))
+    check("product_metrics_no_errors", delta(before, after, "errors") == 0 and delta(before, after, "timeouts") == 0,
+          str(after))
+
+    before = coalescing(USER_BASE_URL, "user")
+    read_after_write(
+        "user", f"{uurl}/{USER_ID}",
+        lambda r: post_json(uurl, {"command": "update", "id": USER_ID, "email": f"v{r}@example.com"})[0],
+        lambda body: json.loads(body)["email"],
+        lambda r: f"v{r}@example.com")
+    after = coalescing(USER_BASE_URL, "user")
+    check("user_metrics_coalesced", delta(before, after, "coalesced") > 0 and delta(before, after, "queries") > 0,
+          str(after))
+    check("user_metrics_no_errors", delta(before, after, "errors") == 0 and delta(before, after, "timeouts") == 0,
+          str(after))
+
+    post_json(purl, {"command": "delete", **product(ROUNDS)})
+    post_json(uurl, {"command": "delete", **user(f"v{ROUNDS}@example.com")})
+
+
+def run_timeout() -> None:
+    for name, base, service in (("product", PRODUCT_BASE_URL, "product"), ("user", USER_BASE_URL, "user")):
+        before = coalescing(base, service)
+        reads, _ = read_while(f"{base}/{service}/{PRODUCT_ID if service == 'product' else USER_ID}", lambda: None)
+        after = coalescing(base, service)
+
+        timed_out = [rd for rd in reads if rd.status == 503]
+        unexpected = [rd.status for rd in reads if rd.status not in (200, 404, 503)]
+        check(f"{name}_timeouts_answered_503", len(timed_out) > 0 and not unexpected,
+              f"{len(timed_out)} of {len(reads)} reads got 503, unexpected statuses {sorted(set(unexpected))}")
+        check(f"{name}_timeout_retry_after", all("retry-after" in rd.headers for rd in timed_out),
+              f"{sum('retry-after' in rd.headers for rd in timed_out)}/{len(timed_out)} with Retry-After")
+        check(f"{name}_timeout_metrics", delta(before, after, "timeouts") >= len(timed_out), str(after))
+
+
+def run_dberror() -> None:
+    for name, base, service in (("product", PRODUCT_BASE_URL, "product"), ("user", USER_BASE_URL, "user")):
+        before = coalescing(base, service)
+        reads, _ = read_while(f"{base}/{service}/{PRODUCT_ID if service == 'product' else USER_ID}", lambda: None)
+        after = coalescing(base, service)
+
+        statuses = sorted(set(rd.status for rd in reads))
+        # a waiter that got the leader's error must not report the row as missing
+        check(f"{name}_errors_answered_500", statuses == [500], f"{len(reads)} reads, statuses {statuses}")
+        check(f"{name}_error_metrics", delta(before, after, "errors") > 0, str(after))
+
+    status, _, _ = post_json(f"{USER_BASE_URL}/user", {"command": "login", "id": USER_ID, "password": "pw-coalesce"})
+    check("login_error_answered_500", status == 500, str(status))
+
+
+def run():
+    phases = {"consistency": run_consistency, "timeout": run_timeout, "dberror": run_dberror}
+    phase = sys.argv[1] if len(sys.argv) > 1 else "consistency"
+    if phase not in phases:
+        print(f"usage: python {sys.argv[0]} [{' | '.join(phases)}]")
+        sys.exit(2)
+
+    try:
+        phases[phase]()
+    except urllib.error.URLError as e:
+        check(phase, False, f"CONNECTION FAILED: {e}")
+
+    failed = [name for name, ok in results if not ok]
+    print(f"\n{len(results) - len(failed)}/{len(results)} checks passed")
+    sys.exit(1 if failed else 0)
+
+
+if __name__ == "__main__":
+    run()
@@ -0,0 +1,178 @@
+import json
+import sys
+import threading
+import time
+import urllib.request
+import urllib.error
+from typing import Any, Dict, List, Optional, Tuple
+
+# ---------------- CONFIG ----------------
+# python test_session_tokens.py [tokens | expiry]
+#
+# tokens (default): UserService running normally. Login, delete with a token, forged
+#   and foreign tokens, tokens revoked by a password change, and logins racing a
+#   password change: a login that checked the old password must not outlive it.
+# expiry: start UserService with TOKEN_TTL_MS=1000; a token must stop working once
+#   that has passed.
+USER_BASE_URL = "http://localhost:8081"
+
+# ids well away from the ones used by the other test files
+FIRST_ID = 990501
+
+EXPIRY_TTL = 1.0  # TOKEN_TTL_MS for the expiry phase, in seconds
+RACE_ROUNDS = 5
+RACE_LOGINS = 8   # concurrent logins per round
+
+
+# ---------------- HTTP ----------------
+def call(url: str, method: str = "GET", data: Optional[bytes] = None,
+         headers: Optional[Dict[str, str]] = None) -> Tuple[int, bytes]:
+    req = urllib.request.Request(url, data=data, headers=headers or {}, method=method)
+    try:
+        with urllib.request.urlopen(req) as resp:
+            return resp.getcode(), resp.read()
+    except urllib.error.HTTPError as e:
+        return e.code, e.read()
+
+
+def post_json(url: str, body: Dict[str, Any], headers: Optional[Dict[str, str]] = None) -> Tuple[int, bytes]:
+    return call(url, "POST", json.dumps(body).encode("utf-8"),
+                dict({"Content-Type": "application/json"}, **(headers or {})))
+
+
+# ---------------- USERS ----------------
+URL = f"{USER_BASE_URL}/user"
+
+
+def user(uid: int, password: str = "pw-1") -> Dict[str, Any]:
+    return {"id": uid, "username": f"token_{uid}", "email": f"token_{uid}@example.com", "password": password}
+
+
+def fresh_user(uid: int, stale_passwords: Tuple[str, ...] = ("pw-1", "pw-2")) -> int:
+    for pw in stale_passwords:
+        post_json(URL, {"command": "delete", **user(uid, pw)})
+    status, _ = post_json(URL, {"command": "create", **user(uid)})
+    return status
+
+
+def login(uid: int, password: str) -> Tuple[int, Optional[str]]:
+    status, body = post_json(URL, {"command": "login", "id": uid, "password": password})
+    return status, (json.loads(body).get("token") if status == 200 else None)
+
+
+def delete_with(uid: int, token: str) -> int:
+    return post_json(URL, {"command": "delete", "id": uid}, {"Authorization": f"Bearer {token}"})[0]
+
+
+def change_password(uid: int, password: str) -> int:
+    return post_json(URL, {"command": "update", "id": uid, "password": password})[0]
+
+
+# ---------------- CHECKS ----------------
+results = []
+
+
+def check(name: str, ok: bool, detail: str = "") -> None:
+    results.append((name, ok))
+    print(f"[{name}] {'✅' if ok else '❌'} {detail}")
+
+
+def forge(token: str) -> str:
+    sig = token[token.rindex(".") + 1:]
+    return token[:token.rindex(".") + 1] + ("A" if sig[0] != "A" else "B") + sig[1:]
+
+
+def run_tokens() -> None:
+    a, b = FIRST_ID, FIRST_ID + 1
+    check("setup", fresh_user(a) == 200 and fresh_user(b) == 200)
+
+    status, body = post_json(URL, {"command": "login", "id": a, "password": "pw-1"})
+    doc = json.loads(body) if status == 200 else {}
+    token_a = doc.get("token")
+    check("login", status == 200 and doc.get("id") == a and token_a and doc.get("expires_in_ms", 0) > 0, str(doc))
+    check("login_wrong_password", login(a, "nope")[0] == 401)
+    check("login_unknown_user", login(FIRST_ID + 99, "pw-1")[0] == 404)
+
+    # tokens that must not delete anything
+    check("forged_signature", delete_with(a, forge(token_a)) == 401)
+    payload = token_a.split(".")
+    payload[1] = str(b)  # re-targeted at another user, signature unchanged
+    check("forged_user_id", delete_with(b, ".".join(payload)) == 401)
+    check("someone_elses_token", delete_with(b, token_a) == 401)
+    check("garbage_token", delete_with(a, "not.a.token") == 401)
+
+    # a password change revokes every earlier token
+    check("password_change", change_password(a, "pw-2") == 200)
+    check("revoked_after_password_change", delete_with(a, token_a) == 401)
+    status, token_a2 = login(a, "pw-2")
+    check("login_new_password", status == 200 and login(a, "pw-1")[0] == 401)
+
+    check("delete_with_token", delete_with(a, token_a2) == 200)
+    check("deleted_user_gone", call(f"{URL}/{a}")[0] == 404)
+    check("token_dead_after_delete", delete_with(a, token_a2) in (401, 404))
+
+    # logins racing a password change: any that checked the old password is revoked with it
+    survived, obtained = 0, 0
+    for r in range(RACE_ROUNDS):
+        if fresh_user(b) != 200:
+            check("race_setup", False, f"round {r}")
+            return
+        tokens: List[str] = []
+        lock = threading.Lock()
+        go = threading.Barrier(RACE_LOGINS + 1)
+
+        def racer() -> None:
+            go.wait()
+            status, token = login(b, "pw-1")
+            if status == 200:
+                with lock:
+                    tokens.append(token)
+
+        threads = [threading.Thread(target=racer) for _ in range(RACE_LOGINS)]
+        for t in threads:
+            t.start()
+        go.wait()
+        change_password(b, "pw-2")
+        for t in threads:
+            t.join()
+
+        obtained += len(tokens)
+        for token in tokens:
+            if delete_with(b, token) == 200:
+                survived += 1
+                break  # user is gone; recreated next round
+    check("race_old_password_tokens_revoked", survived == 0,
+          f"{survived} of {obtained} old-password tokens still worked after the change")
+    post_json(URL, {"command": "delete", **user(b, "pw-2")})
+
+
+def run_expiry() -> None:
+    uid = FIRST_ID + 2
+    check("setup", fresh_user(uid) == 200)
+    status, token = login(uid, "pw-1")
+    check("login", status == 200 and token is not None, str(status))
+    time.sleep(EXPIRY_TTL * 1.5)
+    check("expired_token_rejected", delete_with(uid, token) == 401)
+    status, token = login(uid, "pw-1")
+    check("fresh_token_accepted", status == 200 and delete_with(uid, token) == 200)
+
+
+def run():
+    phases = {"tokens": run_tokens, "expiry": run_expiry}
+    phase = sys.argv[1] if len(sys.argv) > 1 else "tokens"
+    if phase not in phases:
+        print(f"usage: python {sys.argv[0]} [{' | '.join(phases)}]")
+        sys.exit(2)
+
+    try:
+        phases[phase]()
+    except urllib.error.URLError as e:
+        check(phase, False, f"CONNECTION FAILED: {e}")
+
+    failed = [name for name, ok in results if not ok]
+    print(f"\n{len(results) - len(failed)}/{len(results)} checks passed")
+    sys.exit(1 if failed else 0)
+
+
+if __name__ == "__main__":
+    run()
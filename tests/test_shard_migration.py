@@ -0,0 +1,155 @@
+import json
+import sys
+import urllib.request
+import urllib.error
+from typing import Any, Dict, Optional, Tuple
+
+# ---------------- CONFIG ----------------
+# python test_shard_migration.py [unchanged | seed | moved]
+#
+# unchanged (default): start ProductService with a migration in progress whose layout
+#   does not change, so every id keeps its owner, e.g. with the default single shard:
+#     PRODUCT_SHARDS_PREVIOUS="$DB_URL"   (or the same value as PRODUCT_SHARDS)
+#   Writes then go through the move-on-touch path without anything to move, and must
+#   behave exactly as they do outside a migration.
+#
+# seed, then moved: ids that really change owner.
+#   1. start ProductService with PRODUCT_SHARDS="A" and run "seed"
+#   2. restart it with PRODUCT_SHARDS="A;B" and PRODUCT_SHARDS_PREVIOUS="A", run "moved"
+#   With two shards about half of the seeded ids now belong to B: they must still be
+#   readable before anything touched them, survive being moved by a write, and be
+#   readable and deletable afterwards.
+PRODUCT_BASE_URL = "http://localhost:8082"
+
+# ids well away from the ones used by the other test files
+FIRST_ID = 990101
+ID_COUNT = 20
+SEED_FIRST_ID = 990201
+SEED_COUNT = 40
+
+PRICE_EPS = 1e-9
+
+
+# ---------------- HTTP ----------------
+def call(url: str, method: str = "GET", data: Optional[bytes] = None,
+         headers: Optional[Dict[str, str]] = None) -> Tuple[int, bytes]:
+    req = urllib.request.Request(url, data=data, headers=headers or {}, method=method)
+    try:
+        with urllib.request.urlopen(req) as resp:
+            return resp.getcode(), resp.read()
+    except urllib.error.HTTPError as e:
+        return e.code, e.read()
+
+
+def post_json(url: str, body: Dict[str, Any]) -> Tuple[int, bytes]:
+    return call(url, "POST", json.dumps(body).encode("utf-8"), {"Content-Type": "application/json"})
+
+
+# ---------------- CHECKS ----------------
+results = []
+
+
+def check(name: str, ok: bool, detail: str = "") -> None:
+    results.append((name, ok))
+    print(f"[{name}] {'✅' if ok else '❌'} {detail}")
+
+
+def run_unchanged_owner() -> None:
+    url = f"{PRODUCT_BASE_URL}/product"
+    created, updated, readable, deleted = 0, 0, 0, 0
+
+    for pid in range(FIRST_ID, FIRST_ID + ID_COUNT):
+        product = {"id": pid, "name": f"Shard Widget {pid}", "description": "migration",
+                   "price": 3.5, "quantity": 10}
+        post_json(url, {"command": "delete", **product})
+        post_json(url, {"command": "delete", **dict(product, quantity=11)})
+
+        status, _ = post_json(url, {"command": "create", **product})
+        created += status == 200
+
+        # two writes in a row: each one runs the migration path on its own
+        status, _ = post_json(url, {"command": "update", "id": pid, "quantity": 11})
+        status2, _ = post_json(url, {"command": "update", "id": pid, "price": 4.5})
+        updated += status == 200 and status2 == 200
+
+        status, body = call(f"{url}/{pid}")
+        if status == 200:
+            got = json.loads(body)
+            readable += got["quantity"] == 11 and abs(float(got["price"]) - 4.5) <= PRICE_EPS
+
+        status, _ = post_json(url, {"command": "delete", **dict(product, price=4.5, quantity=11)})
+        deleted += status == 200
+
+    check("migration_create", created == ID_COUNT, f"{created}/{ID_COUNT}")
+    check("migration_update_keeps_row", updated == ID_COUNT, f"{updated}/{ID_COUNT}")
+    check("migration_get_after_update", readable == ID_COUNT, f"{readable}/{ID_COUNT}")
+    check("migration_delete", deleted == ID_COUNT, f"{deleted}/{ID_COUNT}")
+
+
+def seeded(pid: int) -> Dict[str, Any]:
+    return {"id": pid, "name": f"Seeded Widget {pid}", "description": "before migration",
+            "price": 2.25, "quantity": pid % 50}
+
+
+def run_seed() -> None:
+    url = f"{PRODUCT_BASE_URL}/product"
+    created = 0
+    for pid in range(SEED_FIRST_ID, SEED_FIRST_ID + SEED_COUNT):
+        post_json(url, {"command": "delete", **seeded(pid)})
+        post_json(url, {"command": "delete", **dict(seeded(pid), quantity=pid % 50 + 1)})
+        status, _ = post_json(url, {"command": "create", **seeded(pid)})
+        created += status == 200
+    check("seed_create", created == SEED_COUNT, f"{created}/{SEED_COUNT}")
+
+
+def run_moved_owner() -> None:
+    url = f"{PRODUCT_BASE_URL}/product"
+    ids = list(range(SEED_FIRST_ID, SEED_FIRST_ID + SEED_COUNT))
+
+    # untouched rows: found through the fallback to the previous shard
+    readable = 0
+    for pid in ids:
+        status, body = call(f"{url}/{pid}")
+        readable += status == 200 and json.loads(body)["quantity"] == pid % 50
+    check("moved_get_before_write", readable == SEED_COUNT, f"{readable}/{SEED_COUNT}")
+
+    # first write moves the row to its new owner
+    updated, readable = 0, 0
+    for pid in ids:
+        status, _ = post_json(url, {"command": "update", "id": pid, "quantity": pid % 50 + 1})
+        updated += status == 200
+        status, body = call(f"{url}/{pid}")
+        readable += status == 200 and json.loads(body)["quantity"] == pid % 50 + 1
+    check("moved_update", updated == SEED_COUNT, f"{updated}/{SEED_COUNT}")
+    check("moved_get_after_write", readable == SEED_COUNT, f"{readable}/{SEED_COUNT}")
+
+    deleted, gone = 0, 0
+    for pid in ids:
+        status, _ = post_json(url, {"command": "delete", **dict(seeded(pid), quantity=pid % 50 + 1)})
+        deleted += status == 200
+        status, _ = call(f"{url}/{pid}")
+        gone += status == 404
+    check("moved_delete", deleted == SEED_COUNT, f"{deleted}/{SEED_COUNT}")
+    # a copy left behind on the old shard would come back through the fallback
+    check("moved_no_copy_left", gone == SEED_COUNT, f"{gone}/{SEED_COUNT}")
+
+
+def run():
+    phases = {"unchanged": run_unchanged_owner, "seed": run_seed, "moved": run_moved_owner}
+    phase = sys.argv[1] if len(sys.argv) > 1 else "unchanged"
+    if phase not in phases:
+        print(f"usage: python {sys.argv[0]} [{' | '.join(phases)}]")
+        sys.exit(2)
+
+    try:
+        phases[phase]()
+    except urllib.error.URLError as e:
+        check(phase, False, f"CONNECTION FAILED: {e}")
+
+    failed = [name for name, ok in results if not ok]
+    print(f"\n{len(results) - len(failed)}/{len(results)} checks passed")
+    sys.exit(1 if failed else 0)
+
+
+if __name__ == "__main__":
+    run()